@@ -0,0 +1,103 @@
+package prj.sqldb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+class BlobInputStream extends InputStream
+{
+    /*
+     * Reads a blob a chunk at a time through SqlDb.readBlob, blocking on
+     * each chunk, so only one chunk of the blob is ever on the heap.
+     */
+
+    private final SqlDb _db;
+    private final String _blobTable;
+    private final long _rowId;
+    private final ByteBuffer _chunk = ByteBuffer.allocate(SqlDb.BLOB_CHUNK_SIZE);
+    private long _offset; //Of the next chunk in the blob
+    private boolean _end;
+
+    BlobInputStream(SqlDb db, String blobTable, long rowId)
+    {
+        _db = db;
+        _blobTable = blobTable;
+        _rowId = rowId;
+        _chunk.flip(); //Empty, so the first read fetches a chunk
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!fill())
+        {
+            return -1;
+        }
+        return _chunk.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!fill())
+        {
+            return -1;
+        }
+        int n = Math.min(len, _chunk.remaining());
+        _chunk.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return _chunk.remaining();
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (_chunk.hasRemaining())
+        {
+            return true;
+        }
+        if (_end)
+        {
+            return false;
+        }
+        _chunk.clear();
+        int read = await(_db.readBlob(_blobTable, _rowId, _offset, _chunk, null));
+        _chunk.flip();
+        if (read < 0)
+        {
+            _end = true;
+            return false;
+        }
+        _offset += read;
+        return true;
+    }
+
+    static <T> T await(Future<T> f) throws IOException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+}
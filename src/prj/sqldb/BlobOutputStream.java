@@ -0,0 +1,99 @@
+package prj.sqldb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+class BlobOutputStream extends OutputStream
+{
+    /*
+     * Collects writes into a chunk and writes each full chunk into the blob
+     * through SqlDb.writeBlob, blocking until it is written. A chunk that
+     * starts part way through a chunk row of the blob, the first one or one
+     * after a flush, is cut short to end on a chunk boundary, so that every
+     * full chunk replaces a chunk row whole.
+     */
+
+    private final SqlDb _db;
+    private final String _blobTable;
+    private final long _rowId;
+    private final ByteBuffer _chunk = ByteBuffer.allocate(SqlDb.BLOB_CHUNK_SIZE);
+    private long _offset; //Of the chunk in the blob
+    private boolean _closed;
+
+    BlobOutputStream(SqlDb db, String blobTable, long rowId, long offset)
+    {
+        _db = db;
+        _blobTable = blobTable;
+        _rowId = rowId;
+        _offset = offset;
+        alignChunk();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        if (!_chunk.hasRemaining())
+        {
+            flush();
+        }
+        _chunk.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while (len > 0)
+        {
+            if (!_chunk.hasRemaining())
+            {
+                flush();
+            }
+            int n = Math.min(len, _chunk.remaining());
+            _chunk.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        if (_chunk.position() == 0)
+        {
+            return;
+        }
+        _chunk.flip();
+        int written = BlobInputStream.await(_db.writeBlob(_blobTable, _rowId, _offset, _chunk, null));
+        _chunk.clear();
+        _offset += written;
+        alignChunk(); //After a flush part way through a chunk, e.g. by a BufferedOutputStream
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!_closed)
+        {
+            flush();
+            _closed = true;
+        }
+    }
+
+    private void alignChunk()
+    {
+        /* Ends the chunk on a chunk boundary of the blob so that the next one replaces a chunk row whole */
+        _chunk.limit(SqlDb.BLOB_CHUNK_SIZE - (int) (_offset % SqlDb.BLOB_CHUNK_SIZE));
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (_closed)
+        {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package prj.sqldb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+class CommitSequence
+{
+    /*
+     * Hands out increasing tokens to writes as they are scheduled and tracks
+     * the highest token below which every write has completed. Work that
+     * must not run before a write completes is parked here, without holding
+     * a thread, and released by the thread that completes that write.
+     */
+
+    private long _issued;
+    private long _committed;
+    private final TreeSet<Long> _completedAhead = new TreeSet<Long>(); //Completed tokens above _committed
+    private final TreeMap<Long, List<Runnable>> _parked = new TreeMap<Long, List<Runnable>>();
+
+    synchronized long issue()
+    {
+        return ++_issued;
+    }
+
+    void complete(long token)
+    {
+        List<Runnable> released = new ArrayList<Runnable>();
+        synchronized (this)
+        {
+            if (token <= _committed)
+            {
+                return; //Already completed, e.g. cancelled and then run anyway
+            }
+            _completedAhead.add(token);
+            while (!_completedAhead.isEmpty() && _completedAhead.first() == _committed + 1)
+            {
+                _committed = _completedAhead.pollFirst();
+            }
+            Map<Long, List<Runnable>> ready = _parked.headMap(_committed, true);
+            for (List<Runnable> runnables : ready.values())
+            {
+                released.addAll(runnables);
+            }
+            ready.clear();
+        }
+        for (Runnable r : released)
+        {
+            r.run();
+        }
+    }
+
+    synchronized void checkIssued(long token)
+    {
+        if (token > _issued)
+        {
+            throw new IllegalArgumentException("Token " + token + " was not issued by this SqlDb");
+        }
+    }
+
+    /* Runs r now if token has been committed, otherwise as soon as it is */
+    void runAfter(long token, Runnable r)
+    {
+        synchronized (this)
+        {
+            checkIssued(token);
+            if (token > _committed)
+            {
+                List<Runnable> runnables = _parked.get(token);
+                if (runnables == null)
+                {
+                    runnables = new ArrayList<Runnable>();
+                    _parked.put(token, runnables);
+                }
+                runnables.add(r);
+                return;
+            }
+        }
+        r.run();
+    }
+}
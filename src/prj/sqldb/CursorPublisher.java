@@ -0,0 +1,328 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prj.sqldb.reactive.Publisher;
+import prj.sqldb.reactive.Subscriber;
+import prj.sqldb.reactive.Subscription;
+import prj.sqldb.threading.SerialExecutor;
+
+class CursorPublisher<T> implements Publisher<T>
+{
+    /*
+     * A cold publisher, every subscriber reads the result afresh on the db
+     * reader thread, and only while there is outstanding demand, so a slow
+     * subscriber never causes the result to be buffered. At most BATCH rows
+     * are read per visit to the reader thread so that a large request does
+     * not starve other reads.
+     *
+     * With Pages every visit runs its own query for the rows after the last
+     * rowid emitted and closes it again, so nothing is held open between
+     * visits and no row is emitted twice. Otherwise one cursor is opened on
+     * the first request and kept across visits. That cursor counts the whole
+     * result on its first move and runs the query again for every window it
+     * fills, outside any transaction, so writes committed in between can
+     * make it skip or repeat rows.
+     */
+
+    private static final int BATCH = 64;
+
+    /* Opens at most limit rows after a rowid in rowid order, with the rowid as the last column */
+    interface Pages
+    {
+        Cursor open(long afterRowId, int limit);
+    }
+
+    private final Callable<Cursor> _opener;
+    private final Pages _pages;
+    private final RowMapper<T> _mapper;
+    private final Executor _reader;
+    private final Executor _appExecutor;
+
+    CursorPublisher(Callable<Cursor> opener, RowMapper<T> mapper,
+                    Executor reader, Executor appExecutor)
+    {
+        this(opener, null, mapper, reader, appExecutor);
+    }
+
+    CursorPublisher(Pages pages, RowMapper<T> mapper,
+                    Executor reader, Executor appExecutor)
+    {
+        this(null, pages, mapper, reader, appExecutor);
+    }
+
+    private CursorPublisher(Callable<Cursor> opener, Pages pages, RowMapper<T> mapper,
+                            Executor reader, Executor appExecutor)
+    {
+        _opener = opener;
+        _pages = pages;
+        _mapper = mapper;
+        _reader = reader;
+        _appExecutor = appExecutor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber");
+        }
+        new CursorSubscription(subscriber).start();
+    }
+
+    private class CursorSubscription implements Subscription, Runnable
+    {
+        private final Subscriber<? super T> _subscriber;
+        private final SerialExecutor _signals; //Keeps subscriber signals serial on the app executor
+        private final AtomicLong _demand;
+        private final AtomicBoolean _drainScheduled;
+        private volatile boolean _cancelled;
+        private volatile boolean _done;
+        private Cursor _cursor; //Only touched on the db reader thread
+        private long _lastRowId = Long.MIN_VALUE; //Of the last row emitted from Pages, reader thread only
+
+        CursorSubscription(Subscriber<? super T> subscriber)
+        {
+            _subscriber = subscriber;
+            _signals = new SerialExecutor(_appExecutor);
+            _demand = new AtomicLong();
+            _drainScheduled = new AtomicBoolean();
+        }
+
+        void start()
+        {
+            _signals.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _subscriber.onSubscribe(CursorSubscription.this);
+                }
+            });
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                _cancelled = true;
+                signalError(new IllegalArgumentException("Non-positive request " + n));
+                scheduleDrain();
+                return;
+            }
+            long current;
+            long next;
+            do
+            {
+                current = _demand.get();
+                next = current + n;
+                if (next < 0)
+                {
+                    next = Long.MAX_VALUE; //Unbounded
+                }
+            }
+            while (!_demand.compareAndSet(current, next));
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            _cancelled = true;
+            scheduleDrain(); //The cursor is closed on the reader thread
+        }
+
+        @Override
+        public void run()
+        {
+            /* Runs on the db reader thread */
+            try
+            {
+                if (_cancelled)
+                {
+                    finish();
+                    return;
+                }
+                if (_pages != null ? readPage() : readCursor())
+                {
+                    finish();
+                    signalComplete();
+                    return;
+                }
+            }
+            catch (Exception e)
+            {
+                finish();
+                signalError(e);
+            }
+            finally
+            {
+                _drainScheduled.set(false);
+            }
+            if (_cancelled || _demand.get() > 0)
+            {
+                scheduleDrain();
+            }
+        }
+
+        /* Both return true once the result is exhausted */
+        private boolean readCursor() throws Exception
+        {
+            if (_cursor == null)
+            {
+                _cursor = _opener.call();
+            }
+            int read = 0;
+            while (read < BATCH && _demand.get() > 0 && !_cancelled)
+            {
+                if (!_cursor.moveToNext())
+                {
+                    return true;
+                }
+                signalNext(_mapper.map(_cursor));
+                _demand.decrementAndGet();
+                read++;
+            }
+            return false;
+        }
+
+        private boolean readPage()
+        {
+            long demand = _demand.get();
+            if (demand <= 0)
+            {
+                return false;
+            }
+            int limit = (int) Math.min(BATCH, demand);
+            Cursor c = _pages.open(_lastRowId, limit);
+            try
+            {
+                Cursor row = new WithoutRowId(c);
+                int read = 0;
+                while (!_cancelled && c.moveToNext())
+                {
+                    signalNext(_mapper.map(row));
+                    _lastRowId = c.getLong(c.getColumnCount() - 1);
+                    _demand.decrementAndGet();
+                    read++;
+                }
+                return read < limit && !_cancelled;
+            }
+            finally
+            {
+                c.close();
+            }
+        }
+
+        private void scheduleDrain()
+        {
+            if (!_done && _drainScheduled.compareAndSet(false, true))
+            {
+                _reader.execute(this);
+            }
+        }
+
+        private void finish()
+        {
+            _done = true;
+            if (_cursor != null && !_cursor.isClosed())
+            {
+                _cursor.close();
+            }
+        }
+
+        private void signalNext(final T item)
+        {
+            _signals.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!_cancelled)
+                    {
+                        _subscriber.onNext(item);
+                    }
+                }
+            });
+        }
+
+        private void signalComplete()
+        {
+            _signals.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!_cancelled)
+                    {
+                        _subscriber.onComplete();
+                    }
+                }
+            });
+        }
+
+        private void signalError(final Throwable t)
+        {
+            _signals.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _subscriber.onError(t);
+                }
+            });
+        }
+    }
+
+    private static class WithoutRowId extends CursorWrapper
+    {
+        /* Hides the trailing rowid column of a page from the RowMapper */
+
+        private final int _columns;
+
+        WithoutRowId(Cursor cursor)
+        {
+            super(cursor);
+            _columns = cursor.getColumnCount() - 1;
+        }
+
+        @Override
+        public int getColumnCount()
+        {
+            return _columns;
+        }
+
+        @Override
+        public String[] getColumnNames()
+        {
+            return Arrays.copyOf(super.getColumnNames(), _columns);
+        }
+
+        @Override
+        public int getColumnIndex(String columnName)
+        {
+            int i = super.getColumnIndex(columnName);
+            return i < _columns ? i : -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName)
+        {
+            int i = getColumnIndex(columnName);
+            if (i < 0)
+            {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package prj.sqldb;
+
+interface DelegatingHandler
+{
+    /*
+     * A CursorHandler that hands the cursor on to a caller's handler. Single
+     * flight keys queries by the class of that handler rather than of the
+     * delegating one, which is the same for every caller.
+     */
+    Class<?> getHandlerClass();
+}
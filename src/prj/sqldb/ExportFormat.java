@@ -0,0 +1,19 @@
+package prj.sqldb;
+
+public enum ExportFormat
+{
+    /*
+     * BINARY is compact and keeps the type of every value:
+     *   "SQDB", version byte 1, int column count, per column: int length + UTF-8 name
+     *   per row: byte 1, then per column a type byte followed by its value -
+     *     0 null, 1 integer (8 bytes), 2 real (8 bytes), 3 text (int length + UTF-8), 4 blob (int length + bytes)
+     *   byte 0 after the last row
+     * All numbers are big endian.
+     *
+     * CSV follows RFC 4180 with a header row of column names. An empty,
+     * unquoted field is NULL, an unquoted X'..' field is a hex encoded blob
+     * and every other field is text, left to the column affinity to convert.
+     */
+    BINARY,
+    CSV
+}
@@ -0,0 +1,286 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+abstract class ExportWriter
+{
+    /*
+     * Encodes rows of a cursor in an ExportFormat into a buffer that is
+     * written to the channel whenever it fills up, so the memory used does
+     * not depend on the number or size of rows. The buffer belongs to the
+     * export and keeps what is not yet written between its pages.
+     */
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private final WritableByteChannel _channel;
+    private final ByteBuffer _buffer;
+
+    ExportWriter(WritableByteChannel channel, ByteBuffer buffer)
+    {
+        _channel = channel;
+        _buffer = buffer;
+        _buffer.clear();
+    }
+
+    static ExportWriter create(ExportFormat format, WritableByteChannel channel, ByteBuffer buffer)
+    {
+        return format == ExportFormat.CSV ? new Csv(channel, buffer) : new Binary(channel, buffer);
+    }
+
+    abstract void writeHeader(String[] columns) throws IOException;
+
+    /* Writes the columns of the current row from firstColumn on */
+    abstract void writeRow(Cursor cursor, int firstColumn) throws IOException;
+
+    abstract void writeEnd() throws IOException;
+
+    void flush() throws IOException
+    {
+        _buffer.flip();
+        while (_buffer.hasRemaining())
+        {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    void put(byte b) throws IOException
+    {
+        if (!_buffer.hasRemaining())
+        {
+            flush();
+        }
+        _buffer.put(b);
+    }
+
+    void put(byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            if (!_buffer.hasRemaining())
+            {
+                flush();
+            }
+            int n = Math.min(bytes.length - offset, _buffer.remaining());
+            _buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    void putInt(int i) throws IOException
+    {
+        if (_buffer.remaining() < 4)
+        {
+            flush();
+        }
+        _buffer.putInt(i);
+    }
+
+    void putLong(long l) throws IOException
+    {
+        if (_buffer.remaining() < 8)
+        {
+            flush();
+        }
+        _buffer.putLong(l);
+    }
+
+    void putDouble(double d) throws IOException
+    {
+        if (_buffer.remaining() < 8)
+        {
+            flush();
+        }
+        _buffer.putDouble(d);
+    }
+
+    static int typeOf(Cursor cursor, int column)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            return cursor.getType(column);
+        }
+        /* Older platforms cannot tell, so everything that is not null or a blob is text */
+        if (cursor.isNull(column))
+        {
+            return Cursor.FIELD_TYPE_NULL;
+        }
+        try
+        {
+            cursor.getString(column);
+            return Cursor.FIELD_TYPE_STRING;
+        }
+        catch (SQLiteException e)
+        {
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+    }
+
+    static byte[] utf8(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e); //UTF-8 is always supported
+        }
+    }
+
+    private static class Binary extends ExportWriter
+    {
+        Binary(WritableByteChannel channel, ByteBuffer buffer)
+        {
+            super(channel, buffer);
+        }
+
+        @Override
+        void writeHeader(String[] columns) throws IOException
+        {
+            put(utf8("SQDB"));
+            put((byte) 1);
+            putInt(columns.length);
+            for (String column : columns)
+            {
+                byte[] name = utf8(column);
+                putInt(name.length);
+                put(name);
+            }
+        }
+
+        @Override
+        void writeRow(Cursor cursor, int firstColumn) throws IOException
+        {
+            put((byte) 1);
+            for (int i = firstColumn; i < cursor.getColumnCount(); i++)
+            {
+                switch (typeOf(cursor, i))
+                {
+                    case Cursor.FIELD_TYPE_NULL:
+                        put((byte) 0);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        put((byte) 1);
+                        putLong(cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        put((byte) 2);
+                        putDouble(cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        put((byte) 4);
+                        putInt(blob.length);
+                        put(blob);
+                        break;
+                    default:
+                        byte[] text = utf8(cursor.getString(i));
+                        put((byte) 3);
+                        putInt(text.length);
+                        put(text);
+                }
+            }
+        }
+
+        @Override
+        void writeEnd() throws IOException
+        {
+            put((byte) 0);
+            flush();
+        }
+    }
+
+    private static class Csv extends ExportWriter
+    {
+        Csv(WritableByteChannel channel, ByteBuffer buffer)
+        {
+            super(channel, buffer);
+        }
+
+        @Override
+        void writeHeader(String[] columns) throws IOException
+        {
+            for (int i = 0; i < columns.length; i++)
+            {
+                if (i > 0)
+                {
+                    put((byte) ',');
+                }
+                putText(columns[i]);
+            }
+            putLineEnd();
+        }
+
+        @Override
+        void writeRow(Cursor cursor, int firstColumn) throws IOException
+        {
+            for (int i = firstColumn; i < cursor.getColumnCount(); i++)
+            {
+                if (i > firstColumn)
+                {
+                    put((byte) ',');
+                }
+                switch (typeOf(cursor, i))
+                {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        put(utf8(cursor.getString(i)));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        put((byte) 'X');
+                        put((byte) '\'');
+                        for (byte b : cursor.getBlob(i))
+                        {
+                            put(HEX[(b >> 4) & 0xf]);
+                            put(HEX[b & 0xf]);
+                        }
+                        put((byte) '\'');
+                        break;
+                    default:
+                        putText(cursor.getString(i));
+                }
+            }
+            putLineEnd();
+        }
+
+        @Override
+        void writeEnd() throws IOException
+        {
+            flush();
+        }
+
+        private void putText(String s) throws IOException
+        {
+            /* Always quoted, which keeps empty text apart from NULL and text apart from blobs */
+            put((byte) '"');
+            byte[] bytes = utf8(s);
+            for (byte b : bytes)
+            {
+                if (b == '"')
+                {
+                    put((byte) '"');
+                }
+                put(b);
+            }
+            put((byte) '"');
+        }
+
+        private void putLineEnd() throws IOException
+        {
+            put((byte) '\r');
+            put((byte) '\n');
+        }
+    }
+}
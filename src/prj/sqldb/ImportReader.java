@@ -0,0 +1,335 @@
+package prj.sqldb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+abstract class ImportReader
+{
+    /*
+     * Decodes rows written by ExportWriter, reading the channel a buffer at
+     * a time. Values are returned as null, Long, Double, String or byte[],
+     * ready to be bound to a statement. The buffer belongs to the import
+     * and keeps what is read ahead between its chunks.
+     */
+
+    private final ReadableByteChannel _channel;
+    private final ByteBuffer _buffer;
+    private boolean _eof;
+    int _columns;
+
+    ImportReader(ReadableByteChannel channel, ByteBuffer buffer)
+    {
+        _channel = channel;
+        _buffer = buffer;
+        _buffer.clear();
+        _buffer.flip(); //Empty, so the first read fills it
+    }
+
+    static ImportReader create(ExportFormat format, ReadableByteChannel channel, ByteBuffer buffer)
+    {
+        return format == ExportFormat.CSV ? new Csv(channel, buffer) : new Binary(channel, buffer);
+    }
+
+    abstract String[] readHeader() throws IOException;
+
+    /* The next row, or null after the last one */
+    abstract Object[] readRow() throws IOException;
+
+    /* Fills the buffer until it holds at least n bytes, false if the channel ends first */
+    boolean fill(int n) throws IOException
+    {
+        if (_buffer.remaining() >= n)
+        {
+            return true;
+        }
+        _buffer.compact();
+        while (_buffer.position() < n && !_eof)
+        {
+            _eof = _channel.read(_buffer) < 0;
+        }
+        _buffer.flip();
+        return _buffer.remaining() >= n;
+    }
+
+    int next() throws IOException
+    {
+        return fill(1) ? _buffer.get() & 0xff : -1;
+    }
+
+    void unread()
+    {
+        /* Only after next() returned a byte, which is then still in the buffer */
+        _buffer.position(_buffer.position() - 1);
+    }
+
+    private void require(int n) throws IOException
+    {
+        if (!fill(n))
+        {
+            throw new EOFException("Import ended part way through a row");
+        }
+    }
+
+    byte readByte() throws IOException
+    {
+        require(1);
+        return _buffer.get();
+    }
+
+    int readInt() throws IOException
+    {
+        require(4);
+        return _buffer.getInt();
+    }
+
+    long readLong() throws IOException
+    {
+        require(8);
+        return _buffer.getLong();
+    }
+
+    double readDouble() throws IOException
+    {
+        require(8);
+        return _buffer.getDouble();
+    }
+
+    byte[] readBytes() throws IOException
+    {
+        int length = readInt();
+        if (length < 0)
+        {
+            throw new IOException("Negative length " + length);
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length)
+        {
+            require(1);
+            int n = Math.min(length - offset, _buffer.remaining());
+            _buffer.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+
+    private static class Binary extends ImportReader
+    {
+        Binary(ReadableByteChannel channel, ByteBuffer buffer)
+        {
+            super(channel, buffer);
+        }
+
+        @Override
+        String[] readHeader() throws IOException
+        {
+            byte[] magic = new byte[4];
+            for (int i = 0; i < magic.length; i++)
+            {
+                magic[i] = readByte();
+            }
+            if (!Arrays.equals(magic, ExportWriter.utf8("SQDB")))
+            {
+                throw new IOException("Not a binary sqldb export");
+            }
+            byte version = readByte();
+            if (version != 1)
+            {
+                throw new IOException("Unsupported export version " + version);
+            }
+            _columns = readInt();
+            String[] columns = new String[_columns];
+            for (int i = 0; i < _columns; i++)
+            {
+                columns[i] = new String(readBytes(), "UTF-8");
+            }
+            return columns;
+        }
+
+        @Override
+        Object[] readRow() throws IOException
+        {
+            byte marker = readByte();
+            if (marker == 0)
+            {
+                return null;
+            }
+            if (marker != 1)
+            {
+                throw new IOException("Bad row marker " + marker);
+            }
+            Object[] row = new Object[_columns];
+            for (int i = 0; i < _columns; i++)
+            {
+                byte type = readByte();
+                switch (type)
+                {
+                    case 0:
+                        break;
+                    case 1:
+                        row[i] = readLong();
+                        break;
+                    case 2:
+                        row[i] = readDouble();
+                        break;
+                    case 3:
+                        row[i] = new String(readBytes(), "UTF-8");
+                        break;
+                    case 4:
+                        row[i] = readBytes();
+                        break;
+                    default:
+                        throw new IOException("Bad value type " + type);
+                }
+            }
+            return row;
+        }
+    }
+
+    private static class Csv extends ImportReader
+    {
+        private final ByteArrayOutputStream _field = new ByteArrayOutputStream();
+        private final List<Object> _values = new ArrayList<Object>();
+        private long _line;
+
+        Csv(ReadableByteChannel channel, ByteBuffer buffer)
+        {
+            super(channel, buffer);
+        }
+
+        @Override
+        String[] readHeader() throws IOException
+        {
+            if (!readRecord())
+            {
+                throw new EOFException("No header row");
+            }
+            _columns = _values.size();
+            String[] columns = new String[_columns];
+            for (int i = 0; i < _columns; i++)
+            {
+                Object name = _values.get(i);
+                if (!(name instanceof String))
+                {
+                    throw new IOException("Column " + (i + 1) + " has no name");
+                }
+                columns[i] = (String) name;
+            }
+            return columns;
+        }
+
+        @Override
+        Object[] readRow() throws IOException
+        {
+            if (!readRecord())
+            {
+                return null;
+            }
+            if (_values.size() != _columns)
+            {
+                throw new IOException("Line " + _line + " has " + _values.size()
+                        + " fields instead of " + _columns);
+            }
+            return _values.toArray();
+        }
+
+        private boolean readRecord() throws IOException
+        {
+            int c = next();
+            if (c < 0)
+            {
+                return false;
+            }
+            _line++;
+            _values.clear();
+            while (true)
+            {
+                _field.reset();
+                boolean quoted = c == '"';
+                if (quoted)
+                {
+                    while (true)
+                    {
+                        c = next();
+                        if (c < 0)
+                        {
+                            throw new EOFException("Unterminated quote on line " + _line);
+                        }
+                        if (c == '"')
+                        {
+                            c = next();
+                            if (c != '"')
+                            {
+                                break; //Closing quote
+                            }
+                        }
+                        _field.write(c);
+                    }
+                    if (c != ',' && c != '\r' && c != '\n' && c >= 0)
+                    {
+                        throw new IOException("Unexpected character after a quote on line " + _line);
+                    }
+                }
+                else
+                {
+                    while (c != ',' && c != '\r' && c != '\n' && c >= 0)
+                    {
+                        _field.write(c);
+                        c = next();
+                    }
+                }
+                _values.add(value(quoted));
+                if (c != ',')
+                {
+                    break;
+                }
+                c = next();
+            }
+            if (c == '\r')
+            {
+                int after = next();
+                if (after >= 0 && after != '\n')
+                {
+                    unread(); //A lone CR ends the record too
+                }
+            }
+            return true;
+        }
+
+        private Object value(boolean quoted) throws IOException
+        {
+            if (quoted)
+            {
+                return _field.toString("UTF-8");
+            }
+            if (_field.size() == 0)
+            {
+                return null;
+            }
+            byte[] bytes = _field.toByteArray();
+            if (bytes.length >= 3 && bytes[0] == 'X' && bytes[1] == '\''
+                    && bytes[bytes.length - 1] == '\'' && bytes.length % 2 == 1)
+            {
+                byte[] blob = new byte[(bytes.length - 3) / 2];
+                for (int i = 0; i < blob.length; i++)
+                {
+                    int high = Character.digit(bytes[2 + 2 * i], 16);
+                    int low = Character.digit(bytes[3 + 2 * i], 16);
+                    if (high < 0 || low < 0)
+                    {
+                        throw new IOException("Bad blob on line " + _line);
+                    }
+                    blob[i] = (byte) (high << 4 | low);
+                }
+                return blob;
+            }
+            return new String(bytes, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package prj.sqldb;
+
+public interface QueryErrorHandler
+{
+    /* Implemented by a CursorHandler or MultipleCursorHandler that wants to
+     * know when its query fails. This method is called on a thread provided by
+     * the ExecutorService that is given to SqlDb in its constructor instead of
+     * callback().
+     */
+    void onError(Exception e);
+}
@@ -0,0 +1,33 @@
+package prj.sqldb;
+
+import java.util.Arrays;
+
+class QueryKey
+{
+    /*
+     * Identifies a query by its sql, its arguments and the class of the
+     * handler that converts its cursor. Two queries with equal keys produce
+     * interchangeable results, which is what single flight relies on.
+     */
+
+    private final Object[] _parts;
+    private final int _hash;
+
+    QueryKey(Object... parts)
+    {
+        _parts = parts;
+        _hash = Arrays.deepHashCode(parts);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof QueryKey && Arrays.deepEquals(_parts, ((QueryKey) o)._parts);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return _hash;
+    }
+}
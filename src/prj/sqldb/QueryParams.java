@@ -10,6 +10,8 @@ public class QueryParams
     private final String _having;
     private final String _orderBy;
     private String _limit;
+    private boolean _explain;
+    private long _notBefore;
 
     public QueryParams(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy)
     {
@@ -66,4 +68,26 @@ public class QueryParams
     {
         _limit = l;
     }
+
+    public boolean isExplain()
+    {
+        return _explain;
+    }
+
+    public void setExplain(boolean explain)
+    {
+        /* Flags this query for a QueryPlanAdvisor regardless of how long it takes */
+        _explain = explain;
+    }
+
+    public long getNotBefore()
+    {
+        return _notBefore;
+    }
+
+    public void setNotBefore(long token)
+    {
+        /* The query runs only after the write with this WriteFuture token has completed */
+        _notBefore = token;
+    }
 }
@@ -0,0 +1,117 @@
+package prj.sqldb;
+
+import java.util.Collections;
+import java.util.List;
+
+public class QueryPlan
+{
+    /*
+     * The EXPLAIN QUERY PLAN output captured by a QueryPlanAdvisor for one
+     * query shape, along with the problems found in it and an index that
+     * would likely avoid them.
+     */
+
+    private final String _shape;
+    private final String _table;
+    private final String _sql;
+    private final List<String> _steps;
+    private final boolean _fullScan;
+    private final boolean _tempBTree;
+    private final String _suggestedIndex;
+    private volatile long _slowestMillis;
+    private volatile int _executions;
+
+    QueryPlan(String shape, String table, String sql, List<String> steps,
+              boolean fullScan, boolean tempBTree, String suggestedIndex)
+    {
+        _shape = shape;
+        _table = table;
+        _sql = sql;
+        _steps = Collections.unmodifiableList(steps);
+        _fullScan = fullScan;
+        _tempBTree = tempBTree;
+        _suggestedIndex = suggestedIndex;
+    }
+
+    /* Identifies queries that differ only in their arguments */
+    public String getShape()
+    {
+        return _shape;
+    }
+
+    /* The queried table, null for raw queries */
+    public String getTable()
+    {
+        return _table;
+    }
+
+    public String getSql()
+    {
+        return _sql;
+    }
+
+    /* The detail column of every row of EXPLAIN QUERY PLAN */
+    public List<String> getSteps()
+    {
+        return _steps;
+    }
+
+    /* True if a table is scanned without the use of an index */
+    public boolean hasFullScan()
+    {
+        return _fullScan;
+    }
+
+    /* True if rows are sorted in a temporary b-tree for ORDER BY, GROUP BY or DISTINCT */
+    public boolean hasTempBTree()
+    {
+        return _tempBTree;
+    }
+
+    public boolean hasProblems()
+    {
+        return _fullScan || _tempBTree;
+    }
+
+    /* CREATE INDEX statement that would likely avoid the problems, null if none could be derived */
+    public String getSuggestedIndex()
+    {
+        return _suggestedIndex;
+    }
+
+    /* The longest a query of this shape took, including the time spent in its CursorHandler */
+    public long getSlowestMillis()
+    {
+        return _slowestMillis;
+    }
+
+    /* The number of queries of this shape that were slow or flagged */
+    public int getExecutions()
+    {
+        return _executions;
+    }
+
+    synchronized void recordExecution(long millis)
+    {
+        _executions++;
+        if (millis > _slowestMillis)
+        {
+            _slowestMillis = millis;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(_sql);
+        for (String step : _steps)
+        {
+            sb.append("\n  ").append(step);
+        }
+        if (_suggestedIndex != null)
+        {
+            sb.append("\n  suggested: ").append(_suggestedIndex);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,330 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class QueryPlanAdvisor
+{
+    /*
+     * Captures the EXPLAIN QUERY PLAN of queries that are slower than a
+     * threshold, that are flagged with QueryParams.setExplain, or of every
+     * query when explainAll is set. A plan is captured once per query shape -
+     * the table, columns, selection, grouping and ordering of a query but not
+     * its arguments. Plans that scan a whole table, or a whole index while
+     * filtering rows, or sort in a temporary b-tree are problems, and for
+     * those an index is suggested from the columns the query filters and
+     * orders on.
+     *
+     * Give an instance to SqlDb.setQueryPlanAdvisor and assert on
+     * getProblems() in tests so that missing indexes are found before release.
+     * The EXPLAIN is run on the db reader thread right after the query.
+     */
+
+    private static final Pattern COMPARISON = Pattern.compile(
+            "(?:\\w+\\.)?(\\w+)\\s*(==|=|<=|>=|<>|!=|<|>|\\bIS\\s+NOT\\b|\\bIS\\b|\\bIN\\b|\\bBETWEEN\\b|\\bLIKE\\b)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern OR = Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ORDER_TERM = Pattern.compile(
+            "^(?:\\w+\\.)?(\\w+)(?:\\s+(?:ASC|DESC))?$", Pattern.CASE_INSENSITIVE);
+
+    private final long _slowQueryMillis;
+    private volatile boolean _explainAll;
+    private final Map<String, QueryPlan> _plans;
+
+    /**
+     * @param slowQueryMillis queries that take at least this long have their
+     *                        plan captured
+     */
+    public QueryPlanAdvisor(long slowQueryMillis)
+    {
+        _slowQueryMillis = slowQueryMillis;
+        _plans = new LinkedHashMap<String, QueryPlan>();
+    }
+
+    /* Captures the plan of every query regardless of how long it takes, meant for development builds */
+    public void setExplainAll(boolean explainAll)
+    {
+        _explainAll = explainAll;
+    }
+
+    public synchronized List<QueryPlan> getPlans()
+    {
+        return new ArrayList<QueryPlan>(_plans.values());
+    }
+
+    /* The captured plans that have a full table or filtered index scan, or a temporary b-tree */
+    public synchronized List<QueryPlan> getProblems()
+    {
+        List<QueryPlan> problems = new ArrayList<QueryPlan>();
+        for (QueryPlan plan : _plans.values())
+        {
+            if (plan.hasProblems())
+            {
+                problems.add(plan);
+            }
+        }
+        return problems;
+    }
+
+    public synchronized void clear()
+    {
+        _plans.clear();
+    }
+
+    /* Called on the db reader thread after a query has been handled */
+    void onQuery(SQLiteDatabase db, QueryParams p, long elapsedMillis)
+    {
+        if (!shouldCapture(p.isExplain(), elapsedMillis))
+        {
+            return;
+        }
+        String sql = SQLiteQueryBuilder.buildQueryString(false, p.getTable(),
+                p.getColumns(), p.getSelection(), p.getGroupBy(),
+                p.getHaving(), p.getOrderBy(), p.getLimit());
+        String shape = p.getTable() + "|" + Arrays.toString(p.getColumns())
+                + "|" + p.getSelection() + "|" + p.getGroupBy() + "|"
+                + p.getHaving() + "|" + p.getOrderBy();
+        capture(db, shape, p.getTable(), p.getSelection(), p.getOrderBy(),
+                sql, p.getSelectionArgs(), elapsedMillis);
+    }
+
+    /* Called on the db reader thread after a raw query has been handled */
+    void onRawQuery(SQLiteDatabase db, String sql, String[] selectionArgs,
+                    long elapsedMillis)
+    {
+        if (shouldCapture(false, elapsedMillis))
+        {
+            capture(db, sql, null, null, null, sql, selectionArgs, elapsedMillis);
+        }
+    }
+
+    private boolean shouldCapture(boolean flagged, long elapsedMillis)
+    {
+        return flagged || _explainAll || elapsedMillis >= _slowQueryMillis;
+    }
+
+    private void capture(SQLiteDatabase db, String shape, String table,
+                         String selection, String orderBy, String sql,
+                         String[] selectionArgs, long elapsedMillis)
+    {
+        QueryPlan plan;
+        synchronized (this)
+        {
+            plan = _plans.get(shape);
+        }
+        if (plan == null)
+        {
+            plan = explain(db, shape, table, selection, orderBy, sql, selectionArgs);
+            if (plan == null)
+            {
+                return;
+            }
+            synchronized (this)
+            {
+                _plans.put(shape, plan);
+            }
+        }
+        plan.recordExecution(elapsedMillis);
+    }
+
+    private QueryPlan explain(SQLiteDatabase db, String shape, String table,
+                              String selection, String orderBy, String sql,
+                              String[] selectionArgs)
+    {
+        List<String> steps = new ArrayList<String>();
+        try
+        {
+            Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            try
+            {
+                int detail = c.getColumnIndex("detail");
+                while (c.moveToNext())
+                {
+                    steps.add(c.getString(detail));
+                }
+            }
+            finally
+            {
+                c.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            //The query itself ran, so this is unexpected, but the advisor must not break the app
+            return null;
+        }
+
+        boolean filtered = table != null ? selection != null && selection.trim().length() > 0
+                : WHERE.matcher(sql).find();
+        boolean fullScan = false;
+        boolean tempBTree = false;
+        for (String step : steps)
+        {
+            if (isFullScan(step, filtered))
+            {
+                fullScan = true;
+            }
+            if (step.contains("USE TEMP B-TREE"))
+            {
+                tempBTree = true;
+            }
+        }
+        String index = null;
+        if ((fullScan || tempBTree) && table != null)
+        {
+            index = suggestIndex(table, selection, orderBy);
+        }
+        return new QueryPlan(shape, table, sql, steps, fullScan, tempBTree, index);
+    }
+
+    static boolean isFullScan(String step, boolean filtered)
+    {
+        /*
+         * SEARCH steps use an index or the rowid to find rows. A SCAN that
+         * walks an index, or the INTEGER PRIMARY KEY, only for its order
+         * still visits every row, which is a problem when rows are filtered.
+         */
+        if (!step.startsWith("SCAN ") || step.startsWith("SCAN SUBQUERY")
+                || step.startsWith("SCAN CONSTANT ROW"))
+        {
+            return false;
+        }
+        return !step.contains(" USING ") || filtered;
+    }
+
+    static String suggestIndex(String table, String selection, String orderBy)
+    {
+        /*
+         * Columns compared for equality come first, then the first column
+         * compared by range. Ordering columns can only be served by the index
+         * when no range comparison precedes them.
+         */
+        Set<String> columns = new LinkedHashSet<String>();
+        String rangeColumn = null;
+        if (selection != null)
+        {
+            String topLevel = topLevel(selection);
+            if (OR.matcher(topLevel).find())
+            {
+                return null; //One composite index cannot serve either side of an OR
+            }
+            Matcher m = COMPARISON.matcher(topLevel);
+            while (m.find())
+            {
+                String column = m.group(1);
+                if (isKeyword(column) || Character.isDigit(column.charAt(0)))
+                {
+                    continue; //Not a column, e.g. 1 = 1
+                }
+                String op = m.group(2).toUpperCase();
+                if (op.equals("<>") || op.equals("!=") || op.startsWith("IS") && op.endsWith("NOT"))
+                {
+                    continue; //Not served by an index
+                }
+                if (op.equals("=") || op.equals("==") || op.equals("IS") || op.equals("IN"))
+                {
+                    columns.add(column);
+                }
+                else if (rangeColumn == null)
+                {
+                    rangeColumn = column;
+                }
+            }
+        }
+        if (rangeColumn != null)
+        {
+            columns.add(rangeColumn);
+        }
+        else if (orderBy != null)
+        {
+            for (String term : orderBy.split(","))
+            {
+                Matcher m = ORDER_TERM.matcher(term.trim());
+                if (!m.matches())
+                {
+                    break; //An expression, the index cannot help past it
+                }
+                columns.add(m.group(1));
+            }
+        }
+        if (columns.isEmpty())
+        {
+            return null;
+        }
+
+        StringBuilder name = new StringBuilder("idx_").append(table);
+        StringBuilder list = new StringBuilder();
+        for (String column : columns)
+        {
+            name.append('_').append(column);
+            if (list.length() > 0)
+            {
+                list.append(", ");
+            }
+            list.append(column);
+        }
+        return "CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + list + ")";
+    }
+
+    private static String topLevel(String selection)
+    {
+        /*
+         * Blanks out quoted literals and whatever is in parentheses, so only
+         * the comparisons that every matching row must satisfy are left. A
+         * parenthesised group may hold an OR, so it is not used for the index.
+         */
+        StringBuilder out = new StringBuilder(selection.length());
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < selection.length(); i++)
+        {
+            char c = selection.charAt(i);
+            if (quote != 0)
+            {
+                out.append(' ');
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"')
+            {
+                quote = c;
+                out.append(' ');
+            }
+            else if (c == '(')
+            {
+                out.append(depth++ == 0 ? c : ' ');
+            }
+            else if (c == ')')
+            {
+                depth = Math.max(0, depth - 1);
+                out.append(depth == 0 ? c : ' ');
+            }
+            else
+            {
+                out.append(depth > 0 ? ' ' : c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isKeyword(String word)
+    {
+        String w = word.toUpperCase();
+        return w.equals("AND") || w.equals("OR") || w.equals("NOT") || w.equals("NULL");
+    }
+}
@@ -0,0 +1,12 @@
+package prj.sqldb;
+
+import java.util.List;
+
+public interface ResultMerger<T>
+{
+    /* This method is called on a thread provided by the ExecutorService that is given to ShardedSqlDb
+     * once every shard has handled its cursor. It combines the per shard results, which are in shard
+     * order, into the result of the whole query.
+     */
+    T merge(List<T> results);
+}
@@ -0,0 +1,83 @@
+package prj.sqldb;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteTableLockedException;
+import android.os.Build;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class RetryPolicy
+{
+    /*
+     * Decides whether an operation that failed because the database was busy
+     * (SQLITE_BUSY) or locked (SQLITE_LOCKED), usually by another process,
+     * should be tried again and how long to back off before doing so.
+     * The backoff doubles with every attempt up to maxDelayMillis and is
+     * jittered so that competing connections do not retry in lock step.
+     */
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    /* SQLITE_BUSY and SQLITE_LOCKED as reported before API 11, e.g. "error code 5: database is locked" */
+    private static final Pattern OLD_BUSY_OR_LOCKED = Pattern.compile(
+            "error code [56]\\b|database (?:table )?is locked");
+
+    private final int _maxAttempts;
+    private final long _baseDelayMillis;
+    private final long _maxDelayMillis;
+    private final Random _random = new Random();
+
+    /**
+     * @param maxAttempts     the most times an operation is run, including the first
+     * @param baseDelayMillis the backoff before the first retry
+     * @param maxDelayMillis  the longest backoff before any retry
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("maxAttempts must be at least 1 but was " + maxAttempts);
+        }
+        _maxAttempts = maxAttempts;
+        _baseDelayMillis = baseDelayMillis;
+        _maxDelayMillis = maxDelayMillis;
+    }
+
+    public boolean shouldRetry(Exception e, int attempts)
+    {
+        return attempts < _maxAttempts && isBusyOrLocked(e);
+    }
+
+    public long delayMillis(int attempts)
+    {
+        long delay = _maxDelayMillis;
+        if (attempts <= 30 && (_baseDelayMillis << (attempts - 1)) < _maxDelayMillis)
+        {
+            delay = _baseDelayMillis << (attempts - 1);
+        }
+        /* Half fixed, half random */
+        long half = delay / 2;
+        synchronized (_random)
+        {
+            return half + (long) (_random.nextDouble() * (delay - half));
+        }
+    }
+
+    public static boolean isBusyOrLocked(Exception e)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            /* SQLITE_BUSY and SQLITE_LOCKED */
+            return e instanceof SQLiteDatabaseLockedException || e instanceof SQLiteTableLockedException;
+        }
+        /*
+         * Older platforms only tell in the message, which starts with either
+         * "error code 5" or sqlite's own text for the result code and goes on
+         * with the failing sql - so only its start is matched
+         */
+        return e instanceof SQLiteException && e.getMessage() != null
+                && OLD_BUSY_OR_LOCKED.matcher(e.getMessage()).lookingAt();
+    }
+}
@@ -0,0 +1,12 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+
+public interface RowMapper<T>
+{
+    /* This method is executed on a DB reader thread once for every row.
+     * Its implementation should convert the row the cursor is positioned on
+     * to some type useful for the application, without moving the cursor.
+     */
+    T map(Cursor cursor);
+}
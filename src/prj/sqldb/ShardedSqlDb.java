@@ -0,0 +1,469 @@
+package prj.sqldb;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import prj.sqldb.threading.Later;
+import prj.sqldb.threading.SqlDBThreads;
+
+/**
+ * ShardedSqlDb spreads a workload over several database files, each managed
+ * by its own SqlDb with its own writer and reader thread, so that writes to
+ * different shards run in parallel.
+ * <p/>
+ * Writes and single shard reads are routed by a shard key - usually the value
+ * of a column such as a user or device id - using consistent hashing, so
+ * adding a shard only moves the keys that now belong to it. Reads that span
+ * all shards run on every shard in parallel and their results are merged.
+ * <p/>
+ * Tokens of WriteFutures returned by a shard are only meaningful to reads on
+ * the same shard key.
+ */
+public class ShardedSqlDb
+{
+    private static final int VIRTUAL_NODES = 64; //Points per shard on the hash ring, evens out the key spread
+    private static final int REBALANCE_PAGE = 500;
+
+    private final List<SqlDb> _shards;
+    private volatile TreeMap<Integer, Integer> _ring; //Hash to shard index, replaced when shards are added
+    private final List<SqlDBThreads> _ownThreads; //Created by open, stopped by shutdown
+
+    public ShardedSqlDb(List<SqlDb> shards)
+    {
+        this(shards, Collections.<SqlDBThreads>emptyList());
+    }
+
+    private ShardedSqlDb(List<SqlDb> shards, List<SqlDBThreads> ownThreads)
+    {
+        if (shards.isEmpty())
+        {
+            throw new IllegalArgumentException("No shards");
+        }
+        _shards = new ArrayList<SqlDb>(shards);
+        _ring = buildRing(_shards.size());
+        _ownThreads = ownThreads;
+    }
+
+    /**
+     * Opens a shard for every helper, asynchronously and each with its own
+     * db threads. Call {@link #shutdown} to stop those threads when done.
+     */
+    public static ShardedSqlDb open(List<SQLiteOpenHelper> helpers,
+                                    ExecutorService appExecutor)
+    {
+        List<SqlDb> shards = new ArrayList<SqlDb>();
+        List<SqlDBThreads> threads = new ArrayList<SqlDBThreads>();
+        for (SQLiteOpenHelper helper : helpers)
+        {
+            SqlDBThreads shardThreads = new SqlDBThreads();
+            threads.add(shardThreads);
+            shards.add(SqlDb.openAsync(helper, appExecutor, shardThreads, null));
+        }
+        return new ShardedSqlDb(shards, threads);
+    }
+
+    /**
+     * Stops the db threads that {@link #open} created, once the operations
+     * already queued on them have run. Shards that were passed in, or added
+     * with addShard, keep their threads. The databases are not closed, close
+     * their helpers once the queued operations are done.
+     */
+    public void shutdown()
+    {
+        for (SqlDBThreads threads : _ownThreads)
+        {
+            threads.shutdown();
+        }
+    }
+
+    public synchronized int getShardCount()
+    {
+        return _shards.size();
+    }
+
+    public synchronized SqlDb getShard(int index)
+    {
+        return _shards.get(index);
+    }
+
+    /* The shard that the rows of shardKey are written to and read from */
+    public SqlDb shardFor(Object shardKey)
+    {
+        int index = indexFor(_ring, shardKey);
+        synchronized (this)
+        {
+            return _shards.get(index);
+        }
+    }
+
+    /**
+     * Adds a shard. New writes for the keys that now map to it go to it
+     * straight away, the rows already written for those keys stay where they
+     * are until {@link #rebalance} moves them.
+     */
+    public synchronized void addShard(SqlDb shard)
+    {
+        _shards.add(shard);
+        _ring = buildRing(_shards.size());
+    }
+
+    /*
+    Single shard methods: These are the SqlDb methods of the same name, run on
+    the shard that shardKey maps to.
+     */
+
+    public WriteFuture<Long> insert(Object shardKey, String table,
+                                    String nullColumnHack,
+                                    ContentValues values, DBCallback cb)
+    {
+        return shardFor(shardKey).insert(table, nullColumnHack, values, cb);
+    }
+
+    public WriteFuture<Long> replace(Object shardKey, String table,
+                                     String nullColumnHack,
+                                     ContentValues values, DBCallback cb)
+    {
+        return shardFor(shardKey).replace(table, nullColumnHack, values, cb);
+    }
+
+    public WriteFuture<Integer> update(Object shardKey, String table,
+                                       ContentValues values, String whereClause,
+                                       String[] whereArgs, DBCallback cb)
+    {
+        return shardFor(shardKey).update(table, values, whereClause, whereArgs, cb);
+    }
+
+    public WriteFuture<Integer> delete(Object shardKey, String table,
+                                       String whereClause, String[] whereArgs,
+                                       DBCallback cb)
+    {
+        return shardFor(shardKey).delete(table, whereClause, whereArgs, cb);
+    }
+
+    public WriteFuture<long[]> execute(Object shardKey, WriteBatch batch,
+                                       WriteBatchCallback cb)
+    {
+        return shardFor(shardKey).execute(batch, cb);
+    }
+
+    public <RESULT> Future<RESULT> query(Object shardKey, QueryParams params,
+                                         CursorHandler<RESULT> handler)
+    {
+        return shardFor(shardKey).query(params, handler);
+    }
+
+    /*
+    Cross shard methods
+     */
+
+    /**
+     * Runs the query on every shard in parallel. handler.handle is called
+     * on the reader thread of each shard, the per shard results are combined
+     * by the merger and handler.callback is called once with the merged
+     * result. If any shard fails the future fails, and the handler is told if
+     * it implements QueryErrorHandler. A token set with
+     * QueryParams.setNotBefore belongs to one shard, so it is not allowed here.
+     */
+    public <RESULT> Future<RESULT> queryAll(QueryParams params,
+                                            final CursorHandler<RESULT> handler,
+                                            final ResultMerger<RESULT> merger)
+    {
+        if (params.getNotBefore() != 0)
+        {
+            throw new IllegalArgumentException("A write token is only meaningful to the shard that issued it");
+        }
+        final List<SqlDb> shards;
+        synchronized (this)
+        {
+            shards = new ArrayList<SqlDb>(_shards);
+        }
+        final Later<RESULT> l = new Later<RESULT>();
+        final List<RESULT> results = Arrays.asList(newArray(shards.size()));
+        final AtomicInteger remaining = new AtomicInteger(shards.size());
+        for (int i = 0; i < shards.size(); i++)
+        {
+            shards.get(i).query(params, new ShardHandler<RESULT>(handler, i)
+            {
+                @Override
+                public void callback(RESULT result)
+                {
+                    /* Results land on the app executor, the last one to land merges */
+                    synchronized (results)
+                    {
+                        results.set(_index, result);
+                    }
+                    if (remaining.decrementAndGet() == 0 && !l.isDone())
+                    {
+                        RESULT merged;
+                        synchronized (results)
+                        {
+                            merged = merger.merge(Collections.unmodifiableList(results));
+                        }
+                        if (l.set(merged))
+                        {
+                            handler.callback(merged);
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Exception e)
+                {
+                    if (l.setException(e) && handler instanceof QueryErrorHandler)
+                    {
+                        ((QueryErrorHandler) handler).onError(e);
+                    }
+                }
+            });
+        }
+        return l;
+    }
+
+    /**
+     * Moves the rows of a table whose shard key - the value of keyColumn - no
+     * longer maps to the shard they are on - typically after
+     * {@link #addShard}. Rows are read a page at a time and for each page
+     * they are first inserted on their new shard and then deleted from their
+     * old one, so memory use does not grow with the size of the table.
+     * <p/>
+     * Each shard allocates its own ids, so if the table has an INTEGER
+     * PRIMARY KEY that column is left out and a moved row gets a new id on
+     * its target shard. Other unique keys that already exist on the target
+     * shard make the move fail.
+     * <p/>
+     * This blocks the calling thread till every shard has been processed and
+     * must not be called on the main thread or on a db or app executor thread.
+     * Writes to the table should be paused meanwhile.
+     *
+     * @return the number of rows moved
+     * @throws IllegalArgumentException if the table has no column keyColumn,
+     *                                  before any row is moved
+     */
+    public long rebalance(String table, String keyColumn)
+            throws InterruptedException, ExecutionException
+    {
+        List<SqlDb> shards;
+        synchronized (this)
+        {
+            shards = new ArrayList<SqlDb>(_shards);
+        }
+        TreeMap<Integer, Integer> ring = _ring;
+        String sql = "SELECT rowid AS _rowid_, * FROM " + table
+                + " WHERE rowid > ? ORDER BY rowid LIMIT " + REBALANCE_PAGE;
+        TableInfo info = shards.get(0).rawQuery("PRAGMA table_info(" + table + ")", null, TABLE_INFO).get();
+        String key = info.column(keyColumn);
+        if (key == null)
+        {
+            /* Otherwise every row would hash the same null key and move to one shard */
+            throw new IllegalArgumentException("Table " + table + " has no column " + keyColumn);
+        }
+        String rowIdAlias = info.getRowIdAlias();
+        long moved = 0;
+        for (int source = 0; source < shards.size(); source++)
+        {
+            SqlDb shard = shards.get(source);
+            long lastRowId = 0;
+            while (true)
+            {
+                List<ContentValues> page = shard.rawQuery(sql,
+                        new String[]{String.valueOf(lastRowId)}, ROWS).get();
+                if (page.isEmpty())
+                {
+                    break;
+                }
+                WriteBatch[] inserts = new WriteBatch[shards.size()];
+                WriteBatch deletes = new WriteBatch();
+                for (ContentValues row : page)
+                {
+                    long rowId = row.getAsLong("_rowid_");
+                    row.remove("_rowid_");
+                    lastRowId = rowId;
+                    int target = indexFor(ring, row.getAsString(key));
+                    if (target == source)
+                    {
+                        continue;
+                    }
+                    if (rowIdAlias != null)
+                    {
+                        row.remove(rowIdAlias); //The target shard assigns a new id
+                    }
+                    if (inserts[target] == null)
+                    {
+                        inserts[target] = new WriteBatch();
+                    }
+                    inserts[target].insert(table, null, row);
+                    deletes.delete(table, "rowid = ?", new String[]{String.valueOf(rowId)});
+                }
+                if (deletes.size() == 0)
+                {
+                    continue;
+                }
+                List<Future<long[]>> pending = new ArrayList<Future<long[]>>();
+                for (int target = 0; target < inserts.length; target++)
+                {
+                    if (inserts[target] != null)
+                    {
+                        pending.add(shards.get(target).execute(inserts[target], null));
+                    }
+                }
+                for (Future<long[]> f : pending)
+                {
+                    f.get(); //Rows are only deleted once they are safely on their new shard
+                }
+                shard.execute(deletes, null).get();
+                moved += deletes.size();
+            }
+        }
+        return moved;
+    }
+
+    /* PRIVATES */
+
+    private static final CursorHandler<List<ContentValues>> ROWS = new CursorHandler<List<ContentValues>>()
+    {
+        @Override
+        public List<ContentValues> handle(Cursor cursor)
+        {
+            List<ContentValues> rows = new ArrayList<ContentValues>(cursor.getCount());
+            while (cursor.moveToNext())
+            {
+                ContentValues row = new ContentValues();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                {
+                    copyTypedRow(cursor, row);
+                }
+                else
+                {
+                    /* Column types are not known, values other than blobs are copied as text */
+                    DatabaseUtils.cursorRowToContentValues(cursor, row);
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        @Override
+        public void callback(List<ContentValues> result)
+        {
+            //The caller waits on the future instead
+        }
+    };
+
+    private static final CursorHandler<TableInfo> TABLE_INFO = new CursorHandler<TableInfo>()
+    {
+        @Override
+        public TableInfo handle(Cursor cursor)
+        {
+            return TableInfo.read(cursor);
+        }
+
+        @Override
+        public void callback(TableInfo result)
+        {
+            //The caller waits on the future instead
+        }
+    };
+
+    private static void copyTypedRow(Cursor cursor, ContentValues row)
+    {
+        for (int i = 0; i < cursor.getColumnCount(); i++)
+        {
+            String column = cursor.getColumnName(i);
+            switch (cursor.getType(i))
+            {
+                case Cursor.FIELD_TYPE_NULL:
+                    row.putNull(column);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.put(column, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.put(column, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row.put(column, cursor.getBlob(i));
+                    break;
+                default:
+                    row.put(column, cursor.getString(i));
+            }
+        }
+    }
+
+    private abstract static class ShardHandler<RESULT>
+            implements CursorHandler<RESULT>, QueryErrorHandler, DelegatingHandler
+    {
+        /* Handles one shard's cursor with the caller's handler, the callback collects the result */
+
+        private final CursorHandler<RESULT> _handler;
+        final int _index;
+
+        ShardHandler(CursorHandler<RESULT> handler, int index)
+        {
+            _handler = handler;
+            _index = index;
+        }
+
+        @Override
+        public RESULT handle(Cursor cursor)
+        {
+            return _handler.handle(cursor);
+        }
+
+        @Override
+        public Class<?> getHandlerClass()
+        {
+            return _handler.getClass();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <RESULT> RESULT[] newArray(int size)
+    {
+        return (RESULT[]) new Object[size];
+    }
+
+    private static TreeMap<Integer, Integer> buildRing(int shards)
+    {
+        TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+        for (int shard = 0; shard < shards; shard++)
+        {
+            for (int node = 0; node < VIRTUAL_NODES; node++)
+            {
+                ring.put(hash(shard + "#" + node), shard);
+            }
+        }
+        return ring;
+    }
+
+    private static int indexFor(TreeMap<Integer, Integer> ring, Object shardKey)
+    {
+        SortedMap<Integer, Integer> tail = ring.tailMap(hash(String.valueOf(shardKey)));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    private static int hash(String s)
+    {
+        /* String.hashCode spreads similar keys poorly, so mix it (murmur3 finaliser) */
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
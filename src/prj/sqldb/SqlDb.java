@@ -2,16 +2,38 @@ package prj.sqldb;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
+import prj.sqldb.reactive.Publisher;
+import prj.sqldb.threading.ErrorSink;
 import prj.sqldb.threading.Later;
 import prj.sqldb.threading.SqlDBThreads;
 
@@ -27,29 +49,158 @@ import prj.sqldb.threading.SqlDBThreads;
  * application thread to wait till
  * there is a result, if the application so desires.
  * <p/>
+ * The database can be opened synchronously by the constructor or
+ * asynchronously on the writer thread via {@link #openAsync}, in which case
+ * operations issued before the open completes are queued behind it.
+ * <p/>
  * TODO: offer support for multiple readers from db.
  */
 public class SqlDb
 {
-    private final SQLiteDatabase _db; //Underlying sqlite database
-    private final ExecutorService _appExecutor; //An executor which provides thread on which results from queries will be returned
+    /* The most failures passed to an error sink set by setErrorSink in a minute */
+    public static final int MAX_REPORTED_ERRORS = SqlDBThreads.MAX_REPORTED_ERRORS;
 
-    public SqlDb(SQLiteOpenHelper helper, ExecutorService appExecutor)
+    private SQLiteDatabase _db; //Underlying sqlite database, assigned on the thread that opens it
+    private final ExecutorService _appExecutor; //An executor which provides thread on which results from queries will be returned
+    private final SqlDBThreads _threads; //The db writer and reader threads
+    private final FutureTask<SqlDb> _ready; //Opens the database, done once it is open and migrated
+    private final Later<SqlDb> _opened = new Later<SqlDb>() //What ready() hands out, a view of _ready that cannot be cancelled
     {
-        _db = helper.getWritableDatabase(); //Writable database handles both reads and writes
-        _db.execSQL("PRAGMA synchronous=0");
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+    };
+    private final StatementCache _statements; //Compiled statements, only used on the writer thread
+    private final Set<String> _blobOwners = new HashSet<String>(); //Tables checked to own blobs, see insertZeroBlob, only used on the writer thread
+    private final Executor _readerExecutor; //Runs tasks on the db reader thread
+    private volatile RetryPolicy _retryPolicy = RetryPolicy.NONE;
+    private volatile ErrorSink _errorSink; //Set by setErrorSink, null to use the sink of SqlDBThreads
+    private volatile QueryPlanAdvisor _advisor;
+    private volatile boolean _singleFlight;
+    private final Map<QueryKey, Flight<?>> _flights = new HashMap<QueryKey, Flight<?>>(); //Queries in flight, guarded by itself
+    private final AtomicLong _flightExecutions = new AtomicLong();
+    private final AtomicLong _flightsSaved = new AtomicLong();
+    private final CommitSequence _commits = new CommitSequence(); //Tokens of writes, see WriteFuture
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static final RowMapper<ContentValues> CONTENT_VALUES_MAPPER = new RowMapper<ContentValues>()
+    {
+        @Override
+        public ContentValues map(Cursor cursor)
         {
-            /*
-            Write ahead logging is available from android api 11 and higher
-            and significantly speeds up database operations.
-            More info - http://www.sqlite.org/draft/wal.html
-            */
-            _db.enableWriteAheadLogging();
+            ContentValues row = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, row);
+            return row;
         }
+    };
+
+    public SqlDb(SQLiteOpenHelper helper, ExecutorService appExecutor)
+    {
+        this(helper, appExecutor, SqlDBThreads.getDefault());
+    }
+
+    /**
+     * Same as {@link #SqlDb(SQLiteOpenHelper, ExecutorService)} but runs
+     * operations on the given db threads instead of the shared default ones.
+     */
+    public SqlDb(SQLiteOpenHelper helper, ExecutorService appExecutor,
+                 SqlDBThreads threads)
+    {
+        this(helper, appExecutor, threads, null);
+        _ready.run(); //Open on the calling thread
+        awaitOpen();
+    }
 
+    private SqlDb(final SQLiteOpenHelper helper, ExecutorService appExecutor,
+                  SqlDBThreads threads, final WarmUp warmUp)
+    {
         _appExecutor = appExecutor;
+        _threads = threads;
+        _statements = new StatementCache();
+        _readerExecutor = new Executor()
+        {
+            @Override
+            public void execute(Runnable r)
+            {
+                _threads.scheduleOnReader(r, 0);
+            }
+        };
+        _ready = new FutureTask<SqlDb>(new Callable<SqlDb>()
+        {
+            @Override
+            public SqlDb call() throws Exception
+            {
+                open(helper, warmUp);
+                return SqlDb.this;
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                try
+                {
+                    _opened.set(get());
+                }
+                catch (ExecutionException e)
+                {
+                    _opened.setException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    _opened.setException(e); //Not possible once done
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a SqlDb whose database is opened, created and migrated on the
+     * db writer thread instead of the calling thread.
+     * Operations issued before the open completes are queued and run once it
+     * does. Use {@link #ready()} to find out when the database is usable.
+     */
+    public static SqlDb openAsync(SQLiteOpenHelper helper,
+                                  ExecutorService appExecutor)
+    {
+        return openAsync(helper, appExecutor, null);
+    }
+
+    /**
+     * Same as {@link #openAsync(SQLiteOpenHelper, ExecutorService)}, and
+     * once the database is open it is warmed up as described by warmUp,
+     * which may be null.
+     */
+    public static SqlDb openAsync(SQLiteOpenHelper helper,
+                                  ExecutorService appExecutor, WarmUp warmUp)
+    {
+        return openAsync(helper, appExecutor, SqlDBThreads.getDefault(), warmUp);
+    }
+
+    /**
+     * Same as {@link #openAsync(SQLiteOpenHelper, ExecutorService, WarmUp)}
+     * but runs operations on the given db threads instead of the shared
+     * default ones.
+     */
+    public static SqlDb openAsync(SQLiteOpenHelper helper,
+                                  ExecutorService appExecutor,
+                                  SqlDBThreads threads, WarmUp warmUp)
+    {
+        SqlDb db = new SqlDb(helper, appExecutor, threads, warmUp);
+        threads.scheduleOnWriter(db._ready, 0);
+        return db;
+    }
+
+    /**
+     * @return a future that completes with this SqlDb once the underlying
+     * database is open, or with the exception that prevented it from opening.
+     */
+    public Future<SqlDb> ready()
+    {
+        return _opened;
     }
 
     /**
@@ -62,18 +213,21 @@ public class SqlDb
      *              <br>
      *              2 - FULL MODE, syncs after each critical disk operation
      */
-    public void enableSync(int mode)
+    public void enableSync(final int mode)
     {
-        if (mode == 1)
-        {
-            _db.execSQL("PRAGMA synchronous=1");
-        } else if (mode == 2)
-        {
-            _db.execSQL("PRAGMA synchronous=2");
-        } else
+        if (mode != 1 && mode != 2)
         {
             throw new IllegalArgumentException("Invalid synchronous pragma value " + mode);
         }
+        /* Goes through the writer so that it is queued behind an async open */
+        scheduleOnWriter(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _db.execSQL("PRAGMA synchronous=" + mode);
+            }
+        });
     }
 
     public interface ITransactionCompleteCallback
@@ -111,28 +265,41 @@ public class SqlDb
                                             final String[] selectionArgs,
                                             final CursorHandler<RESULT> handler)
     {
-        final Later<RESULT> l = new Later<RESULT>();
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnReaderDBExecutor(new Runnable()
+        return rawQuery(sql, selectionArgs, 0, handler);
+    }
+
+    public <RESULT> Future<RESULT> rawQuery(final String sql,
+                                            final String[] selectionArgs,
+                                            final long notBefore,
+                                            final CursorHandler<RESULT> handler)
+    {
+        //Runs only after the write whose WriteFuture has the token notBefore has completed, 0 to not wait
+
+        return new HandlerOperation<RESULT>("rawQuery", handler, notBefore)
         {
             @Override
-            public void run()
+            RESULT execute()
             {
-                final Cursor cursor = _db.rawQuery(sql, selectionArgs);
-                final RESULT result = handler.handle(cursor);
-                closeCursor(cursor);
-                l.set(result);
-                _appExecutor.submit(new Runnable()
+                long start = System.nanoTime();
+                Cursor cursor = _db.rawQuery(sql, selectionArgs);
+                RESULT result;
+                try
                 {
-                    @Override
-                    public void run()
-                    {
-                        handler.callback(result);
-                    }
-                });
+                    result = handler.handle(cursor);
+                }
+                finally
+                {
+                    closeCursor(cursor);
+                }
+                /* Only queries that worked are explained */
+                QueryPlanAdvisor advisor = _advisor;
+                if (advisor != null)
+                {
+                    advisor.onRawQuery(_db, sql, selectionArgs, (System.nanoTime() - start) / 1000000);
+                }
+                return result;
             }
-        });
-        l.wrap(f);
-        return l;
+        }.schedule(sql, selectionArgs);
     }
 
     public <RESULT> Future<RESULT> batchQuery(final MultipleCursorHandler<RESULT> bcc,
@@ -140,15 +307,23 @@ public class SqlDb
     {
         //For running a bunch of queries that return results  of the same type
 
-        final Later<RESULT> l = new Later<RESULT>();
-        Runnable r = new Runnable()
+        long notBefore = 0;
+        for (QueryParams p : params)
+        {
+            notBefore = Math.max(notBefore, p.getNotBefore());
+        }
+        return new Operation<RESULT>("batchQuery", false, notBefore)
         {
             @Override
-            public void run()
+            RESULT execute()
             {
                 Iterator<QueryResult> iter = makeSequentialCursorProcessor(params);
-                final RESULT results = bcc.convert(iter);
-                l.set(results);
+                return bcc.convert(iter);
+            }
+
+            @Override
+            void onSuccess(final RESULT results)
+            {
                 Runnable rr = new Runnable()
                 {
                     @Override
@@ -159,10 +334,49 @@ public class SqlDb
                 };
                 _appExecutor.submit(rr);
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnReaderDBExecutor(r);
-        l.wrap(f);
-        return l;
+
+            @Override
+            void onFailure(Exception e)
+            {
+                errorbackInAppExecutor(bcc, e);
+            }
+        }.schedule();
+    }
+
+    public <RESULT> Future<RESULT> query(final QueryParams params,
+                                         final CursorHandler<RESULT> handler)
+    {
+        return new HandlerOperation<RESULT>("query " + params.getTable(), handler, params.getNotBefore())
+        {
+            @Override
+            RESULT execute()
+            {
+                long start = System.nanoTime();
+                Cursor c = syncQuery(params.getTable(), params.getColumns(),
+                        params.getSelection(), params.getSelectionArgs(),
+                        params.getGroupBy(), params.getHaving(),
+                        params.getOrderBy(), params.getLimit());
+                RESULT result;
+                try
+                {
+                    result = handler.handle(c);
+                }
+                finally
+                {
+                    closeCursor(c);
+                }
+                /* Only queries that worked are explained */
+                QueryPlanAdvisor advisor = _advisor;
+                if (advisor != null)
+                {
+                    advisor.onQuery(_db, params, (System.nanoTime() - start) / 1000000);
+                }
+                return result;
+            }
+        }.schedule(params.getTable(), params.getColumns(),
+                params.getSelection(), params.getSelectionArgs(),
+                params.getGroupBy(), params.getHaving(), params.getOrderBy(),
+                params.getLimit());
     }
 
     public <RESULT> Future<RESULT> query(final String table,
@@ -175,30 +389,10 @@ public class SqlDb
                                          final String limit,
                                          final CursorHandler<RESULT> handler)
     {
-        final Later<RESULT> l = new Later<RESULT>();
-        Runnable r = new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                Cursor c = syncQuery(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-                final RESULT result = handler.handle(c);
-                closeCursor(c);
-                l.set(result);
-                Runnable rr = new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        handler.callback(result);
-                    }
-                };
-                _appExecutor.submit(rr);
-            }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnReaderDBExecutor(r);
-        l.wrap(f);
-        return l;
+        QueryParams params = new QueryParams(table, columns, selection,
+                selectionArgs, groupBy, having, orderBy);
+        params.setLimit(limit);
+        return query(params, handler);
     }
 
     public <RESULT> Future<RESULT> query(final String table,
@@ -224,6 +418,113 @@ public class SqlDb
                 null, handler);
     }
 
+    /*
+    Publisher methods: These methods return a Publisher that streams the rows
+    of a query, converted by the RowMapper, to a Subscriber. Rows are read on
+    the db reader thread only as the Subscriber requests them and the
+    Subscriber is signalled in the app provided executor. Cancelling the
+    subscription closes the cursor. Nothing is read until a Subscriber
+    subscribes and requests rows, and every subscription runs the query again.
+
+    A queryPublisher that does not group, order or limit reads its table in
+    rowid order, a short query per batch picking up after the last rowid
+    emitted, so no cursor stays open between batches and no row is emitted
+    twice. Rows written meanwhile may or may not be included. Any other
+    query, and every rawQueryPublisher, keeps one cursor open across batches
+    which is not a snapshot either: each window it fills runs the query
+    again, so rows may be skipped or emitted twice if writes commit between
+    requests. Use an ordinary query when that matters.
+     */
+
+    public <T> Publisher<T> queryPublisher(final QueryParams params,
+                                           RowMapper<T> mapper)
+    {
+        if (params.getGroupBy() == null && params.getHaving() == null
+                && params.getOrderBy() == null && params.getLimit() == null)
+        {
+            return new CursorPublisher<T>(rowIdPages(params), mapper,
+                    readerAfter(params.getNotBefore()), _appExecutor);
+        }
+        return new CursorPublisher<T>(new Callable<Cursor>()
+        {
+            @Override
+            public Cursor call()
+            {
+                awaitOpen();
+                return syncQuery(params.getTable(), params.getColumns(),
+                        params.getSelection(), params.getSelectionArgs(),
+                        params.getGroupBy(), params.getHaving(),
+                        params.getOrderBy(), params.getLimit());
+            }
+        }, mapper, readerAfter(params.getNotBefore()), _appExecutor);
+    }
+
+    public Publisher<ContentValues> queryPublisher(QueryParams params)
+    {
+        return queryPublisher(params, CONTENT_VALUES_MAPPER);
+    }
+
+    public <T> Publisher<T> rawQueryPublisher(final String sql,
+                                              final String[] selectionArgs,
+                                              RowMapper<T> mapper)
+    {
+        return new CursorPublisher<T>(new Callable<Cursor>()
+        {
+            @Override
+            public Cursor call()
+            {
+                awaitOpen();
+                return _db.rawQuery(sql, selectionArgs);
+            }
+        }, mapper, _readerExecutor, _appExecutor);
+    }
+
+    public Publisher<ContentValues> rawQueryPublisher(String sql,
+                                                      String[] selectionArgs)
+    {
+        return rawQueryPublisher(sql, selectionArgs, CONTENT_VALUES_MAPPER);
+    }
+
+    private CursorPublisher.Pages rowIdPages(QueryParams params)
+    {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        String[] columns = params.getColumns();
+        if (columns == null)
+        {
+            sql.append('*');
+        }
+        else
+        {
+            for (int i = 0; i < columns.length; i++)
+            {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+        }
+        sql.append(", rowid AS _page_rowid_ FROM ").append(params.getTable()).append(" WHERE rowid > ?");
+        if (params.getSelection() != null && params.getSelection().length() > 0)
+        {
+            sql.append(" AND (").append(params.getSelection()).append(')');
+        }
+        sql.append(" ORDER BY rowid LIMIT ");
+        final String pageSql = sql.toString();
+        final String[] selectionArgs = params.getSelectionArgs();
+        return new CursorPublisher.Pages()
+        {
+            @Override
+            public Cursor open(long afterRowId, int limit)
+            {
+                awaitOpen();
+                String[] args = new String[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+                args[0] = String.valueOf(afterRowId);
+                for (int i = 1; i < args.length; i++)
+                {
+                    args[i] = selectionArgs[i - 1];
+                }
+                return _db.rawQuery(pageSql + limit, args);
+            }
+        };
+    }
+
     /*
     Modification methods: These methods execute on a single thread dedicated
     for DB writes. They return the
@@ -235,102 +536,63 @@ public class SqlDb
      this otherwise async library.
      */
 
-    public Future<Integer> delete(final String table,
+    public WriteFuture<Integer> delete(final String table,
                                   final String whereClause,
                                   final String[] whereArgs, final DBCallback cb)
     {
-        final Later<Integer> l = new Later<Integer>();
-        Runnable r = new Runnable()
+        return new WriteOperation<Integer>("delete " + table, cb)
         {
             @Override
-            public void run()
+            Integer execute()
             {
-                try
-                {
-                    int numRows = _db.delete(table, whereClause, whereArgs);
-                    l.set(numRows);
-                    callbackInAppExecutor(cb, numRows);
-                }
-                catch (Exception e)
-                {
-                    errorbackInAppExecutor(cb, e);
-                }
+                return _db.delete(table, whereClause, whereArgs);
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnWriterDBExecutor(r);
-        l.wrap(f);
-        return l;
+        }.scheduleWrite();
     }
 
-    public Future<Long> insertWithOnConflict(final String table,
+    public WriteFuture<Long> insertWithOnConflict(final String table,
                                              final String nullColumnHack,
                                              final ContentValues initialValues,
                                              final int conflictAlgorithm,
                                              final DBCallback cb)
     {
-        final Later<Long> l = new Later<Long>();
-        Runnable r = new Runnable()
+        return new WriteOperation<Long>("insert " + table, cb)
         {
             @Override
-            public void run()
+            Long execute()
             {
-                try
-                {
-                    long id = _db.insertWithOnConflict(table, nullColumnHack,
-                            initialValues, conflictAlgorithm);
-                    l.set(id);
-                    callbackInAppExecutor(cb, id);
-                }
-                catch (Exception e)
-                {
-                    errorbackInAppExecutor(cb, e);
-                }
+                return _db.insertWithOnConflict(table, nullColumnHack,
+                        initialValues, conflictAlgorithm);
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnWriterDBExecutor(r);
-        l.wrap(f);
-        return l;
+        }.scheduleWrite();
     }
 
-    public Future<Long> insert(String table, String nullColumnHack,
+    public WriteFuture<Long> insert(String table, String nullColumnHack,
                                ContentValues values, DBCallback cb)
     {
         return insertWithOnConflict(table, nullColumnHack, values,
                 SQLiteDatabase.CONFLICT_NONE, cb);
     }
 
-    public Future<Integer> updateWithOnConflict(final String table,
+    public WriteFuture<Integer> updateWithOnConflict(final String table,
                                                 final ContentValues values,
                                                 final String whereClause,
                                                 final String[] whereArgs,
                                                 final int conflictAlgorithm,
                                                 final DBCallback cb)
     {
-        final Later<Integer> l = new Later<Integer>();
-        Runnable r = new Runnable()
+        return new WriteOperation<Integer>("update " + table, cb)
         {
             @Override
-            public void run()
+            Integer execute()
             {
-                try
-                {
-                    int numRows = _db.updateWithOnConflict(table, values,
-                            whereClause, whereArgs, conflictAlgorithm);
-                    l.set(numRows);
-                    callbackInAppExecutor(cb, numRows);
-                }
-                catch (Exception e)
-                {
-                    errorbackInAppExecutor(cb, e);
-                }
+                return _db.updateWithOnConflict(table, values,
+                        whereClause, whereArgs, conflictAlgorithm);
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnWriterDBExecutor(r);
-        l.wrap(f);
-        return l;
+        }.scheduleWrite();
     }
 
-    public Future<Integer> update(String table, ContentValues values,
+    public WriteFuture<Integer> update(String table, ContentValues values,
                                   String whereClause, String[] whereArgs,
                                   DBCallback cb)
     {
@@ -338,36 +600,23 @@ public class SqlDb
                 SQLiteDatabase.CONFLICT_NONE, cb);
     }
 
-    public Future<Long> replace(final String table,
+    public WriteFuture<Long> replace(final String table,
                                 final String nullColumnHack,
                                 final ContentValues initialValues,
                                 final DBCallback cb)
     {
-        final Later<Long> l = new Later<Long>();
-        Runnable r = new Runnable()
+        return new WriteOperation<Long>("replace " + table, cb)
         {
             @Override
-            public void run()
+            Long execute()
             {
-                try
-                {
-                    long id = _db.replace(table, nullColumnHack, initialValues);
-                    l.set(id);
-                    callbackInAppExecutor(cb, id);
-                }
-                catch (Exception e)
-                {
-                    errorbackInAppExecutor(cb, e);
-                }
+                return _db.replace(table, nullColumnHack, initialValues);
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnWriterDBExecutor(r);
-        l.wrap(f);
-        return l;
+        }.scheduleWrite();
     }
 
 
-    public Later<Boolean> runInTransaction(final Runnable job,
+    public WriteFuture<Boolean> runInTransaction(final Runnable job,
                                            final ITransactionCompleteCallback
                                                    callback)
     {
@@ -382,67 +631,1190 @@ public class SqlDb
         blocking on the future inside the runnable.
           */
 
-        final Later<Boolean> l = new Later<Boolean>();
-        Runnable r = new Runnable()
+        return new Operation<Boolean>("runInTransaction", true)
         {
             @Override
-            public void run()
+            Boolean execute()
             {
+                beginTransaction();
                 try
                 {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-                    {
-                        _db.beginTransactionNonExclusive();
-                    }
-                    else
-                    {
-                        _db.beginTransaction();
-                    }
                     job.run();
                     _db.setTransactionSuccessful();
-                    l.set(true);
-                }
-                catch (Exception e)
-                {
-                    l.set(false);
-                    fireCompletionCallback(callback, false);
                 }
                 finally
                 {
                     _db.endTransaction();
                 }
-                fireCompletionCallback(callback, true);
+                return true;
             }
-        };
-        ScheduledFuture<?> f = SqlDBThreads.scheduleOnWriterDBExecutor(r);
-        l.wrap(f);
-        return l;
-    }
-
-    /* PRIVATES */
 
+            @Override
+            void onSuccess(Boolean result)
+            {
+                fireCompletionCallback(callback, true);
+            }
 
-    private Cursor syncQuery(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit)
-    {
-        return _db.query(table, columns, selection, selectionArgs,
-                groupBy, having, orderBy, limit);
+            @Override
+            void fail(Exception e)
+            {
+                /* A failed transaction completes with false rather than an exception */
+                _later.set(false);
+                fireCompletionCallback(callback, false);
+                report(e);
+            }
+        }.scheduleWrite();
     }
 
-    private Iterator<QueryResult> makeSequentialCursorProcessor(List<QueryParams> params)
+    /**
+     * Runs all the operations of a WriteBatch on the writer thread, in order
+     * and in a single transaction unless the batch has a chunk size. The
+     * future and callback get one result per operation - a row id for
+     * inserts and the number of rows affected for updates and deletes.
+     * Operations with the same sql share one compiled statement.
+     */
+    public WriteFuture<long[]> execute(WriteBatch batch, final WriteBatchCallback cb)
     {
-        return new SequentialCursorProcessor
-                (new IQueryProcessor()
+        final List<WriteBatch.Op> ops = new ArrayList<WriteBatch.Op>(batch.getOps());
+        final int chunkSize = batch.getChunkSize();
+        return new Operation<long[]>("batch of " + ops.size(), true)
+        {
+            private final long[] _results = new long[ops.size()];
+            private int _committed; //Committed chunks are not run again on a retry
+
+            @Override
+            long[] execute()
+            {
+                while (_committed < ops.size())
                 {
-                    @Override
-                    public Cursor process(QueryParams p)
+                    int end = Math.min(_committed + chunkSize, ops.size());
+                    beginTransaction();
+                    try
                     {
-                        return _db.query(p.getTable(), p.getColumns(),
-                                p.getSelection(), p.getSelectionArgs(),
-                                p.getGroupBy(), p.getHaving(),
-                                p.getOrderBy(), p.getLimit());
+                        for (int i = _committed; i < end; i++)
+                        {
+                            _results[i] = executeOp(ops.get(i));
+                        }
+                        _db.setTransactionSuccessful();
                     }
-                }, params);
-    }
+                    finally
+                    {
+                        _db.endTransaction();
+                    }
+                    _committed = end;
+                }
+                return _results;
+            }
+
+            @Override
+            void onSuccess(final long[] results)
+            {
+                if (cb != null)
+                {
+                    _appExecutor.submit(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            cb.exec(results);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            void onFailure(final Exception e)
+            {
+                if (cb != null)
+                {
+                    _appExecutor.submit(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            cb.onError(e);
+                        }
+                    });
+                }
+            }
+        }.scheduleWrite();
+    }
+
+    /*
+    Export and import: Rows are streamed through a channel in an ExportFormat,
+    a buffer at a time, so tables of any size can be copied without holding
+    them in memory. Channels must be blocking and are not closed.
+     */
+
+    private static final int EXPORT_PAGE_ROWS = 1000;
+
+    /**
+     * Writes the rows of a query to the channel on the reader thread. Rows
+     * are read in pages of 1000 in rowid order, each page picking up after
+     * the last rowid written, and other reads run between pages. So the
+     * table must have a rowid, and the query cannot group, order or limit.
+     * The export is not a snapshot - rows written meanwhile may or may not
+     * be included - but no row is written twice. The future and callback
+     * get the number of rows written.
+     */
+    public Future<Long> export(final QueryParams params,
+                               final WritableByteChannel channel,
+                               final ExportFormat format, final DBCallback cb)
+    {
+        if (params.getGroupBy() != null || params.getHaving() != null
+                || params.getOrderBy() != null || params.getLimit() != null)
+        {
+            throw new IllegalArgumentException("An export is paged by rowid, so it cannot group, order or limit");
+        }
+        StringBuilder sql = new StringBuilder("SELECT rowid AS _export_rowid_, ");
+        String[] columns = params.getColumns();
+        if (columns == null)
+        {
+            sql.append('*');
+        }
+        else
+        {
+            for (int i = 0; i < columns.length; i++)
+            {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(params.getTable()).append(" WHERE rowid > ?");
+        if (params.getSelection() != null && params.getSelection().length() > 0)
+        {
+            sql.append(" AND (").append(params.getSelection()).append(')');
+        }
+        sql.append(" ORDER BY rowid LIMIT ").append(EXPORT_PAGE_ROWS);
+        final String pageSql = sql.toString();
+        final String[] selectionArgs = params.getSelectionArgs();
+        return new Operation<Long>("export " + params.getTable(), false, params.getNotBefore())
+        {
+            private ExportWriter _writer;
+            private long _lastRowId = Long.MIN_VALUE; //Of the last row written, a retry or the next page carries on after it
+            private long _rows;
+
+            @Override
+            Long execute() throws IOException
+            {
+                String[] args = new String[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+                args[0] = String.valueOf(_lastRowId);
+                for (int i = 1; i < args.length; i++)
+                {
+                    args[i] = selectionArgs[i - 1];
+                }
+                Cursor c = _db.rawQuery(pageSql, args);
+                try
+                {
+                    if (_writer == null)
+                    {
+                        _writer = ExportWriter.create(format, channel,
+                                ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE));
+                        String[] names = c.getColumnNames();
+                        _writer.writeHeader(Arrays.copyOfRange(names, 1, names.length));
+                    }
+                    int page = 0;
+                    while (c.moveToNext())
+                    {
+                        _writer.writeRow(c, 1);
+                        _lastRowId = c.getLong(0);
+                        _rows++;
+                        page++;
+                    }
+                    if (page == EXPORT_PAGE_ROWS)
+                    {
+                        again();
+                        return null;
+                    }
+                    _writer.writeEnd();
+                    return _rows;
+                }
+                finally
+                {
+                    closeCursor(c);
+                }
+            }
+
+            @Override
+            void onSuccess(Long rows)
+            {
+                callbackInAppExecutor(cb, rows);
+            }
+
+            @Override
+            void onFailure(Exception e)
+            {
+                errorbackInAppExecutor(cb, e);
+            }
+        }.schedule();
+    }
+
+    public Future<Long> exportTable(String table, WritableByteChannel channel,
+                                    ExportFormat format, DBCallback cb)
+    {
+        return export(new QueryParams(table, null, null, null, null, null, null),
+                channel, format, cb);
+    }
+
+    /**
+     * Inserts the rows read from the channel, as written by export, into
+     * table on the writer thread. Rows are inserted in transactions of
+     * chunkRows rows, and other writes run between chunks, so a failed
+     * import leaves the chunks before the failure in the table and other
+     * writes may land in between. The future and callback get the number of
+     * rows inserted.
+     */
+    public WriteFuture<Long> importTable(final String table,
+                                         final ReadableByteChannel channel,
+                                         final ExportFormat format,
+                                         final int chunkRows, DBCallback cb)
+    {
+        if (chunkRows < 1)
+        {
+            throw new IllegalArgumentException("chunkRows must be positive: " + chunkRows);
+        }
+        return new WriteOperation<Long>("import " + table, cb)
+        {
+            private ImportReader _reader;
+            private String _sql;
+            private final List<Object[]> _chunk = new ArrayList<Object[]>(); //Read but not committed, kept for a retry
+            private long _imported;
+
+            @Override
+            Long execute() throws IOException
+            {
+                if (_reader == null)
+                {
+                    /* Its own buffer, as it keeps what is read ahead while other writes run */
+                    _reader = ImportReader.create(format, channel,
+                            ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE));
+                    _sql = insertSql(table, _reader.readHeader());
+                }
+                if (_chunk.isEmpty())
+                {
+                    Object[] row;
+                    while (_chunk.size() < chunkRows && (row = _reader.readRow()) != null)
+                    {
+                        _chunk.add(row);
+                    }
+                    if (_chunk.isEmpty())
+                    {
+                        return _imported;
+                    }
+                }
+                beginTransaction();
+                try
+                {
+                    SQLiteStatement statement = _statements.get(_db, _sql);
+                    for (Object[] row : _chunk)
+                    {
+                        for (int i = 0; i < row.length; i++)
+                        {
+                            DatabaseUtils.bindObjectToProgram(statement, i + 1, row[i]);
+                        }
+                        statement.executeInsert();
+                    }
+                    _db.setTransactionSuccessful();
+                }
+                finally
+                {
+                    _db.endTransaction();
+                }
+                _imported += _chunk.size();
+                _chunk.clear();
+                again();
+                return null;
+            }
+        }.scheduleWrite();
+    }
+
+    /*
+    Blobs: Values too large for the heap or a CursorWindow are kept in a blob
+    table - see blobTableSql - as rows of at most BLOB_CHUNK_SIZE bytes, keyed
+    by the rowid of the row that owns them and their sequence number. Reads
+    and writes only ever touch the chunk rows they cover, so streaming a blob
+    costs the same per chunk whatever its size. Chunks are read on the reader
+    and written on the writer thread. A blob is sized up front with
+    insertZeroBlob and written in place, writes cannot grow it.
+     */
+
+    public static final int BLOB_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKS_PER_READ = 16; //Keeps a read within one CursorWindow
+
+    /* The CREATE TABLE statement of a blob table, to be run in SQLiteOpenHelper.onCreate */
+    public static String blobTableSql(String blobTable)
+    {
+        return "CREATE TABLE " + blobTable + " (owner INTEGER NOT NULL, seq INTEGER NOT NULL, "
+                + "bytes BLOB NOT NULL, PRIMARY KEY (owner, seq))";
+    }
+
+    /**
+     * Inserts values into table and, in the same transaction, allocates a
+     * blob of length zero bytes for the new row in blobTable, to be filled in
+     * with writeBlob or openBlobOutputStream. values may be null. The future
+     * and callback get the row id.
+     * <p/>
+     * Chunks are tied to the rowid of their row, which VACUUM may renumber
+     * unless it is an INTEGER PRIMARY KEY, so table must have one. Otherwise
+     * the insert fails with an IllegalArgumentException.
+     */
+    public WriteFuture<Long> insertZeroBlob(final String table, ContentValues values,
+                                            final String blobTable,
+                                            final long length, DBCallback cb)
+    {
+        if (length < 0)
+        {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        final WriteBatch.Op insert = values == null || values.size() == 0
+                ? new WriteBatch.Op("INSERT INTO " + table + " DEFAULT VALUES", null, true)
+                : new WriteBatch().insert(table, null, values).getOps().get(0);
+        final String chunkSql = "INSERT INTO " + blobTable + " (owner, seq, bytes) VALUES (?, ?, zeroblob(?))";
+        return new WriteOperation<Long>("insertZeroBlob " + table, cb)
+        {
+            @Override
+            Long execute()
+            {
+                checkBlobOwner(table);
+                beginTransaction();
+                try
+                {
+                    long rowId = executeOp(insert);
+                    for (long seq = 0; seq * BLOB_CHUNK_SIZE < length; seq++)
+                    {
+                        long size = Math.min(BLOB_CHUNK_SIZE, length - seq * BLOB_CHUNK_SIZE);
+                        executeOp(new WriteBatch.Op(chunkSql, new Object[]{rowId, seq, size}, true));
+                    }
+                    _db.setTransactionSuccessful();
+                    return rowId;
+                }
+                finally
+                {
+                    _db.endTransaction();
+                }
+            }
+        }.scheduleWrite();
+    }
+
+    private void checkBlobOwner(String table)
+    {
+        /* On the writer thread, which keeps the tables already checked */
+        if (_blobOwners.contains(table))
+        {
+            return;
+        }
+        Cursor c = _db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try
+        {
+            if (TableInfo.read(c).getRowIdAlias() == null)
+            {
+                throw new IllegalArgumentException("Table " + table
+                        + " owns blobs by rowid, so it needs an INTEGER PRIMARY KEY that VACUUM keeps");
+            }
+        }
+        finally
+        {
+            closeCursor(c);
+        }
+        _blobOwners.add(table);
+    }
+
+    /* Deletes the blob of a row, which deleting the row itself does not do. The future and callback get the number of chunks deleted */
+    public WriteFuture<Integer> deleteBlob(String blobTable, long rowId, DBCallback cb)
+    {
+        return delete(blobTable, "owner = ?", new String[]{String.valueOf(rowId)}, cb);
+    }
+
+    /* The length in bytes of the blob of a row, 0 if it has none */
+    public Future<Long> blobLength(final String blobTable, final long rowId,
+                                   final DBCallback cb)
+    {
+        return new Operation<Long>("blobLength " + blobTable, false)
+        {
+            @Override
+            Long execute()
+            {
+                /* Every chunk but the last is full */
+                Cursor c = _db.rawQuery("SELECT seq, length(bytes) FROM " + blobTable
+                        + " WHERE owner = ? ORDER BY seq DESC LIMIT 1",
+                        new String[]{String.valueOf(rowId)});
+                try
+                {
+                    return c.moveToFirst() ? c.getLong(0) * BLOB_CHUNK_SIZE + c.getLong(1) : 0L;
+                }
+                finally
+                {
+                    closeCursor(c);
+                }
+            }
+
+            @Override
+            void onSuccess(Long length)
+            {
+                callbackInAppExecutor(cb, length);
+            }
+
+            @Override
+            void onFailure(Exception e)
+            {
+                errorbackInAppExecutor(cb, e);
+            }
+        }.schedule();
+    }
+
+    /**
+     * Reads up to dst.remaining() bytes of the blob of a row, starting at
+     * offset, into dst on the reader thread. At most 16 chunks are read at a
+     * time. dst must not be touched until the future completes. The future
+     * and callback get the number of bytes read, -1 if offset is at or past
+     * the end of the blob.
+     */
+    public Future<Integer> readBlob(final String blobTable, final long rowId,
+                                    final long offset, final ByteBuffer dst,
+                                    final DBCallback cb)
+    {
+        return new Operation<Integer>("readBlob " + blobTable, false)
+        {
+            @Override
+            Integer execute()
+            {
+                if (!dst.hasRemaining())
+                {
+                    return 0;
+                }
+                long first = offset / BLOB_CHUNK_SIZE;
+                long last = Math.min((offset + dst.remaining() - 1) / BLOB_CHUNK_SIZE,
+                        first + MAX_CHUNKS_PER_READ - 1);
+                Cursor c = _db.rawQuery("SELECT seq, bytes FROM " + blobTable
+                        + " WHERE owner = ? AND seq BETWEEN ? AND ? ORDER BY seq",
+                        new String[]{String.valueOf(rowId), String.valueOf(first), String.valueOf(last)});
+                try
+                {
+                    int read = 0;
+                    long position = offset;
+                    while (dst.hasRemaining() && c.moveToNext()
+                            && c.getLong(0) == position / BLOB_CHUNK_SIZE)
+                    {
+                        byte[] chunk = c.getBlob(1);
+                        int from = (int) (position % BLOB_CHUNK_SIZE);
+                        if (from >= chunk.length)
+                        {
+                            break; //Past the end of the last chunk
+                        }
+                        int n = Math.min(chunk.length - from, dst.remaining());
+                        dst.put(chunk, from, n);
+                        read += n;
+                        position += n;
+                    }
+                    return read == 0 ? -1 : read;
+                }
+                finally
+                {
+                    closeCursor(c);
+                }
+            }
+
+            @Override
+            void onSuccess(Integer read)
+            {
+                callbackInAppExecutor(cb, read);
+            }
+
+            @Override
+            void onFailure(Exception e)
+            {
+                errorbackInAppExecutor(cb, e);
+            }
+        }.schedule();
+    }
+
+    /**
+     * Writes the remaining bytes of src into the blob of a row, starting at
+     * offset, on the writer thread and in one transaction. The bytes are
+     * copied before this returns, so src can be reused straight away. The
+     * write must lie within the blob, otherwise it fails. Chunks that are
+     * only partly written are read and rewritten, so writes aligned to
+     * BLOB_CHUNK_SIZE are cheapest. The future and callback get the number
+     * of bytes written.
+     */
+    public WriteFuture<Integer> writeBlob(final String blobTable, final long rowId,
+                                          final long offset, ByteBuffer src,
+                                          DBCallback cb)
+    {
+        final byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        final String updateSql = "UPDATE " + blobTable + " SET bytes = ? WHERE owner = ? AND seq = ? AND length(bytes) = ?";
+        return new WriteOperation<Integer>("writeBlob " + blobTable, cb)
+        {
+            @Override
+            Integer execute()
+            {
+                beginTransaction();
+                try
+                {
+                    int written = 0;
+                    while (written < bytes.length)
+                    {
+                        long position = offset + written;
+                        long seq = position / BLOB_CHUNK_SIZE;
+                        int from = (int) (position % BLOB_CHUNK_SIZE);
+                        int n = Math.min(BLOB_CHUNK_SIZE - from, bytes.length - written);
+                        /* A chunk written whole is simply replaced, the length check keeps the write within the blob */
+                        if (from != 0 || updateChunk(n == bytes.length ? bytes
+                                : Arrays.copyOfRange(bytes, written, written + n), seq) == 0)
+                        {
+                            byte[] chunk = readChunk(blobTable, rowId, seq);
+                            if (from + n > chunk.length)
+                            {
+                                throw new SQLException("Write past the end of the blob of row " + rowId);
+                            }
+                            System.arraycopy(bytes, written, chunk, from, n);
+                            updateChunk(chunk, seq);
+                        }
+                        written += n;
+                    }
+                    _db.setTransactionSuccessful();
+                    return written;
+                }
+                finally
+                {
+                    _db.endTransaction();
+                }
+            }
+
+            private long updateChunk(byte[] chunk, long seq)
+            {
+                return executeOp(new WriteBatch.Op(updateSql,
+                        new Object[]{chunk, rowId, seq, (long) chunk.length}, false));
+            }
+        }.scheduleWrite();
+    }
+
+    /**
+     * A stream over the blob of a row that reads it a chunk at a time. Its
+     * reads block on the reader thread, so it must not be used on the main
+     * thread or on a db or app executor thread.
+     */
+    public InputStream openBlobInputStream(String blobTable, long rowId)
+    {
+        return new BlobInputStream(this, blobTable, rowId);
+    }
+
+    /**
+     * A stream that writes into the blob of a row from offset onwards, a
+     * chunk at a time, typically after insertZeroBlob. Writes block on the
+     * writer thread, so like openBlobInputStream it must not be used on the
+     * main thread or on a db or app executor thread. Close it to write the
+     * last chunk.
+     */
+    public OutputStream openBlobOutputStream(String blobTable, long rowId, long offset)
+    {
+        return new BlobOutputStream(this, blobTable, rowId, offset);
+    }
+
+    /**
+     * Turns single flight on or off, it is off by default. With single flight
+     * a query or rawQuery that matches one which is already queued or running
+     * is not run again, instead it completes with the result of that query.
+     * Queries match when their sql, arguments and the class of their
+     * CursorHandler are equal - so all handlers of a class must produce
+     * results that can be shared between callers.
+     */
+    public void setSingleFlight(boolean singleFlight)
+    {
+        _singleFlight = singleFlight;
+    }
+
+    /* The number of queries run while single flight was on */
+    public long getSingleFlightExecutions()
+    {
+        return _flightExecutions.get();
+    }
+
+    /* The number of queries that were not run because they joined a matching query */
+    public long getSingleFlightSaved()
+    {
+        return _flightsSaved.get();
+    }
+
+    /**
+     * Sets the policy used to retry operations that fail because the database
+     * is busy or locked by another connection. Defaults to
+     * {@link RetryPolicy#NONE}.
+     */
+    public void setRetryPolicy(RetryPolicy policy)
+    {
+        _retryPolicy = policy;
+    }
+
+    /**
+     * Sets the sink that failed operations are reported to, in addition to
+     * their future and callback. Reports are rate limited to
+     * {@link #MAX_REPORTED_ERRORS} a minute. Defaults to, or with null goes
+     * back to, whatever sink {@link SqlDBThreads} has at the time.
+     */
+    public void setErrorSink(ErrorSink sink)
+    {
+        _errorSink = sink == null ? null : SqlDBThreads.rateLimited(sink);
+    }
+
+    /**
+     * Sets the advisor that captures the query plans of slow or flagged
+     * queries, null to stop capturing. Capturing is off by default.
+     */
+    public void setQueryPlanAdvisor(QueryPlanAdvisor advisor)
+    {
+        _advisor = advisor;
+    }
+
+    /*
+    Operations: Every query and modification is an Operation which runs on a
+    db thread, completes its future and fires its callback. An Operation that
+    fails because the database is busy or locked is retried as the retry
+    policy allows. Writes are retried in place on the writer thread so that
+    they stay in order, reads are rescheduled so the reader is free meanwhile.
+    Long reads and writes, such as exports and imports, can call again() to
+    be run once more, behind the work queued meanwhile, rather than hold
+    their thread throughout.
+    A failure that is not retried completes the future with the exception, is
+    passed to the callback and is reported to the error sink.
+    Every write gets a token from the commit sequence when it is created and
+    completes it when it is done, successfully or not. A read that has to see
+    a write is given its token and is parked in the commit sequence until then.
+     */
+
+    private abstract class Operation<RESULT> implements Runnable
+    {
+        private final String _name;
+        private final boolean _write;
+        final long _notBefore; //Token of the write a read must wait for, 0 for none
+        final Later<RESULT> _later;
+        private int _attempts;
+        private boolean _again;
+
+        Operation(String name, boolean write)
+        {
+            this(name, write, 0);
+        }
+
+        Operation(String name, boolean write, long notBefore)
+        {
+            _name = name;
+            _write = write;
+            _notBefore = notBefore;
+            _later = write ? new WriteFuture<RESULT>(_commits, _commits.issue()) : new Later<RESULT>();
+        }
+
+        /* Runs on the db thread and does the actual work */
+        abstract RESULT execute() throws Exception;
+
+        void onSuccess(RESULT result)
+        {
+        }
+
+        void onFailure(Exception e)
+        {
+        }
+
+        void fail(Exception e)
+        {
+            _later.setException(e);
+            onFailure(e);
+            report(e);
+        }
+
+        void report(Exception e)
+        {
+            errorSink().onError(_name, e);
+        }
+
+        /* Called from execute to run it once more, behind the work queued meanwhile, instead of completing */
+        void again()
+        {
+            _again = true;
+        }
+
+        Later<RESULT> schedule()
+        {
+            if (_write)
+            {
+                _later.wrap(_threads.scheduleOnWriter(this, 0));
+            }
+            else if (_notBefore > 0)
+            {
+                /* Parked until the write commits, so only reads that depend on it wait */
+                _commits.runAfter(_notBefore, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        _later.wrap(_threads.scheduleOnReader(Operation.this, 0));
+                    }
+                });
+            }
+            else
+            {
+                _later.wrap(_threads.scheduleOnReader(this, 0));
+            }
+            return _later;
+        }
+
+        @SuppressWarnings("unchecked")
+        WriteFuture<RESULT> scheduleWrite()
+        {
+            return (WriteFuture<RESULT>) schedule();
+        }
+
+        private void commit()
+        {
+            /* Before the future completes so that a read given its token is not parked needlessly */
+            if (_write)
+            {
+                _commits.complete(((WriteFuture<RESULT>) _later).getToken());
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            if (_write && !((WriteFuture<RESULT>) _later).start())
+            {
+                return; //Cancelled before it started, which completed its token
+            }
+            while (true)
+            {
+                _attempts++;
+                RESULT result;
+                try
+                {
+                    awaitOpen();
+                    result = execute();
+                }
+                catch (Exception e)
+                {
+                    RetryPolicy policy = _retryPolicy;
+                    if (!policy.shouldRetry(e, _attempts))
+                    {
+                        commit();
+                        fail(e);
+                        return;
+                    }
+                    long delay = policy.delayMillis(_attempts);
+                    if (!_write)
+                    {
+                        _later.wrap(_threads.scheduleOnReader(this, delay));
+                        return;
+                    }
+                    try
+                    {
+                        Thread.sleep(delay);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        commit();
+                        fail(e);
+                        return;
+                    }
+                    continue;
+                }
+                catch (Error err)
+                {
+                    /* Thrown by app code or out of memory, the future, its joiners and the token must still complete */
+                    commit();
+                    fail(new RuntimeException(err));
+                    return;
+                }
+                if (_again)
+                {
+                    _again = false;
+                    _attempts = 0;
+                    _later.wrap(_write ? _threads.scheduleOnWriter(this, 0) : _threads.scheduleOnReader(this, 0));
+                    return;
+                }
+                commit();
+                _later.set(result);
+                onSuccess(result);
+                return;
+            }
+        }
+    }
+
+    private abstract class HandlerOperation<RESULT> extends Operation<RESULT>
+    {
+        /*
+         * A query whose result goes to a CursorHandler. In single flight mode
+         * it may have a Flight of callers that all share its result.
+         */
+
+        private final CursorHandler<RESULT> _handler;
+        private QueryKey _key;
+        private Flight<RESULT> _flight;
+
+        HandlerOperation(String name, CursorHandler<RESULT> handler, long notBefore)
+        {
+            super(name, false, notBefore);
+            _handler = handler;
+        }
+
+        Future<RESULT> schedule(Object... keyParts)
+        {
+            if (!_singleFlight)
+            {
+                return schedule();
+            }
+            Later<RESULT> l = new Later<RESULT>();
+            /* A query waiting for a write must not join one that may run before it */
+            Class<?> handlerClass = _handler instanceof DelegatingHandler
+                    ? ((DelegatingHandler) _handler).getHandlerClass() : _handler.getClass();
+            QueryKey key = new QueryKey(handlerClass, _notBefore, new QueryKey(keyParts));
+            synchronized (_flights)
+            {
+                @SuppressWarnings("unchecked")
+                Flight<RESULT> existing = (Flight<RESULT>) _flights.get(key);
+                if (existing != null)
+                {
+                    existing.add(l, _handler);
+                    _flightsSaved.incrementAndGet();
+                    return l;
+                }
+                _key = key;
+                _flight = new Flight<RESULT>();
+                _flight.add(l, _handler);
+                _flights.put(key, _flight);
+            }
+            _flightExecutions.incrementAndGet();
+            schedule();
+            /* Callers get their own future so that one of them cancelling does not cancel the others */
+            return l;
+        }
+
+        @Override
+        void onSuccess(RESULT result)
+        {
+            if (_flight == null)
+            {
+                callbackInAppExecutor(_handler, result);
+                return;
+            }
+            land();
+            for (int i = 0; i < _flight.laters.size(); i++)
+            {
+                _flight.laters.get(i).set(result);
+                callbackInAppExecutor(_flight.handlers.get(i), result);
+            }
+        }
+
+        @Override
+        void onFailure(Exception e)
+        {
+            if (_flight == null)
+            {
+                errorbackInAppExecutor(_handler, e);
+                return;
+            }
+            land();
+            for (int i = 0; i < _flight.laters.size(); i++)
+            {
+                _flight.laters.get(i).setException(e);
+                errorbackInAppExecutor(_flight.handlers.get(i), e);
+            }
+        }
+
+        private void land()
+        {
+            /* Once removed no caller can join, so the lists are safe to read */
+            synchronized (_flights)
+            {
+                _flights.remove(_key);
+            }
+        }
+    }
+
+    private static class Flight<RESULT>
+    {
+        final List<Later<RESULT>> laters = new ArrayList<Later<RESULT>>();
+        final List<CursorHandler<RESULT>> handlers = new ArrayList<CursorHandler<RESULT>>();
+
+        void add(Later<RESULT> l, CursorHandler<RESULT> handler)
+        {
+            laters.add(l);
+            handlers.add(handler);
+        }
+    }
+
+    private abstract class WriteOperation<RESULT extends Number> extends Operation<RESULT>
+    {
+        private final DBCallback _cb;
+
+        WriteOperation(String name, DBCallback cb)
+        {
+            super(name, true);
+            _cb = cb;
+        }
+
+        @Override
+        void onSuccess(RESULT result)
+        {
+            callbackInAppExecutor(_cb, result.longValue());
+        }
+
+        @Override
+        void onFailure(Exception e)
+        {
+            errorbackInAppExecutor(_cb, e);
+        }
+    }
+
+    /* PRIVATES */
+
+    private void open(SQLiteOpenHelper helper, WarmUp warmUp)
+    {
+        _db = helper.getWritableDatabase(); //Writable database handles both reads and writes
+        _db.execSQL("PRAGMA synchronous=0");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            /*
+            Write ahead logging is available from android api 11 and higher
+            and significantly speeds up database operations.
+            More info - http://www.sqlite.org/draft/wal.html
+            */
+            _db.enableWriteAheadLogging();
+        }
+
+        if (warmUp != null)
+        {
+            for (final String sql : warmUp.getStatements())
+            {
+                prepare(sql);
+                scheduleOnReader(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        prepare(sql);
+                    }
+                });
+            }
+            for (final String sql : warmUp.getPreloadQueries())
+            {
+                scheduleOnReader(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        preload(sql);
+                    }
+                });
+            }
+        }
+    }
+
+    private ErrorSink errorSink()
+    {
+        ErrorSink sink = _errorSink;
+        return sink != null ? sink : SqlDBThreads.getErrorSink();
+    }
+
+    private void prepare(String sql)
+    {
+        /* Compiling a statement leaves it in the statement cache of the connection android used for it */
+        try
+        {
+            _db.compileStatement(sql).close();
+        }
+        catch (SQLException e)
+        {
+            errorSink().onError("warm up " + sql, e); //Best effort, but a typo should be noticed
+        }
+    }
+
+    private void preload(String sql)
+    {
+        /* A single-row count still walks every page of the table or index into sqlite's page cache */
+        try
+        {
+            DatabaseUtils.longForQuery(_db, sql, null);
+        }
+        catch (SQLException e)
+        {
+            //Warm up is best effort, a missing table or index should not break the app
+        }
+    }
+
+    private void awaitOpen()
+    {
+        /* Blocks the db thread, and hence everything queued behind it, until the database is open */
+        try
+        {
+            _ready.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the database to open", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Database failed to open", e.getCause());
+        }
+    }
+
+    private Executor readerAfter(final long notBefore)
+    {
+        /* Runs on the reader, but not before the write with the token notBefore has completed */
+        if (notBefore == 0)
+        {
+            return _readerExecutor;
+        }
+        _commits.checkIssued(notBefore);
+        return new Executor()
+        {
+            @Override
+            public void execute(final Runnable r)
+            {
+                _commits.runAfter(notBefore, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        _readerExecutor.execute(r);
+                    }
+                });
+            }
+        };
+    }
+
+    private ScheduledFuture<?> scheduleOnReader(final Runnable r)
+    {
+        return _threads.scheduleOnReader(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                awaitOpen();
+                r.run();
+            }
+        }, 0);
+    }
+
+    private ScheduledFuture<?> scheduleOnWriter(final Runnable r)
+    {
+        return _threads.scheduleOnWriter(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                awaitOpen();
+                r.run();
+            }
+        }, 0);
+    }
+
+
+    private void beginTransaction()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            _db.beginTransactionNonExclusive();
+        }
+        else
+        {
+            _db.beginTransaction();
+        }
+    }
+
+    private long executeOp(WriteBatch.Op op)
+    {
+        /* Runs on the writer thread, which is the only user of _statements */
+        SQLiteStatement statement = _statements.get(_db, op.sql);
+        if (op.args != null)
+        {
+            for (int i = 0; i < op.args.length; i++)
+            {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, op.args[i]);
+            }
+        }
+        if (op.insert)
+        {
+            return statement.executeInsert();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            return statement.executeUpdateDelete();
+        }
+        statement.execute();
+        return DatabaseUtils.longForQuery(_db, "SELECT changes()", null);
+    }
+
+    private byte[] readChunk(String blobTable, long rowId, long seq)
+    {
+        /* Runs on the writer thread, a partly written chunk is read back through the writer's connection */
+        Cursor c = _db.rawQuery("SELECT bytes FROM " + blobTable + " WHERE owner = ? AND seq = ?",
+                new String[]{String.valueOf(rowId), String.valueOf(seq)});
+        try
+        {
+            if (!c.moveToFirst())
+            {
+                throw new SQLException("Write past the end of the blob of row " + rowId);
+            }
+            return c.getBlob(0);
+        }
+        finally
+        {
+            closeCursor(c);
+        }
+    }
+
+    private static String insertSql(String table, String[] columns)
+    {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") VALUES (");
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append('"').append(columns[i].replace("\"", "\"\"")).append('"');
+            values.append('?');
+        }
+        return sql.append(values).append(')').toString();
+    }
+
+    private Cursor syncQuery(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit)
+    {
+        return _db.query(table, columns, selection, selectionArgs,
+                groupBy, having, orderBy, limit);
+    }
+
+    private Iterator<QueryResult> makeSequentialCursorProcessor(List<QueryParams> params)
+    {
+        return new SequentialCursorProcessor
+                (new IQueryProcessor()
+                {
+                    @Override
+                    public Cursor process(QueryParams p)
+                    {
+                        QueryPlanAdvisor advisor = _advisor;
+                        if (advisor != null)
+                        {
+                            /* How long a batched query takes is not known as the handler
+                             * reads its cursor, so only flagged queries or explainAll are captured */
+                            advisor.onQuery(_db, p, 0);
+                        }
+                        return _db.query(p.getTable(), p.getColumns(),
+                                p.getSelection(), p.getSelectionArgs(),
+                                p.getGroupBy(), p.getHaving(),
+                                p.getOrderBy(), p.getLimit());
+                    }
+                }, params);
+    }
 
     private void callbackInAppExecutor(final DBCallback cb, final long arg)
     {
@@ -476,6 +1848,35 @@ public class SqlDb
         }
     }
 
+    private <RESULT> void callbackInAppExecutor(final CursorHandler<RESULT> handler,
+                                                final RESULT result)
+    {
+        _appExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handler.callback(result);
+            }
+        });
+    }
+
+    private void errorbackInAppExecutor(Object handler, final Exception e)
+    {
+        if (handler instanceof QueryErrorHandler)
+        {
+            final QueryErrorHandler eh = (QueryErrorHandler) handler;
+            _appExecutor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    eh.onError(e);
+                }
+            });
+        }
+    }
+
 
     private void fireCompletionCallback(final ITransactionCompleteCallback
                                                 cb, final boolean b)
@@ -0,0 +1,52 @@
+package prj.sqldb;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class StatementCache
+{
+    /*
+     * A small LRU cache of compiled statements keyed by their sql.
+     * A compiled statement must not be shared between threads, so a cache
+     * must only ever be used from the db writer thread.
+     */
+
+    private static final int MAX_SIZE = 32;
+
+    private final LinkedHashMap<String, SQLiteStatement> _statements;
+
+    StatementCache()
+    {
+        _statements = new LinkedHashMap<String, SQLiteStatement>(MAX_SIZE, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest)
+            {
+                if (size() > MAX_SIZE)
+                {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    SQLiteStatement get(SQLiteDatabase db, String sql)
+    {
+        SQLiteStatement statement = _statements.get(sql);
+        if (statement == null)
+        {
+            statement = db.compileStatement(sql);
+            _statements.put(sql, statement);
+        }
+        else
+        {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+}
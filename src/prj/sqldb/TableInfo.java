@@ -0,0 +1,54 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class TableInfo
+{
+    /* The columns of a table as PRAGMA table_info lists them */
+
+    private final List<String> _columns = new ArrayList<String>();
+    private String _rowIdAlias; //The INTEGER PRIMARY KEY column, which is an alias of the rowid, or null
+
+    static TableInfo read(Cursor cursor)
+    {
+        TableInfo info = new TableInfo();
+        String alias = null;
+        int keys = 0;
+        while (cursor.moveToNext())
+        {
+            String name = cursor.getString(cursor.getColumnIndex("name"));
+            info._columns.add(name);
+            if (cursor.getInt(cursor.getColumnIndex("pk")) > 0)
+            {
+                keys++;
+                if ("INTEGER".equalsIgnoreCase(cursor.getString(cursor.getColumnIndex("type"))))
+                {
+                    alias = name;
+                }
+            }
+        }
+        info._rowIdAlias = keys == 1 ? alias : null; //Part of a composite key is not an alias
+        return info;
+    }
+
+    String column(String name)
+    {
+        /* Column names are not case sensitive, but ContentValues keys are */
+        for (String column : _columns)
+        {
+            if (column.equalsIgnoreCase(name))
+            {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    String getRowIdAlias()
+    {
+        return _rowIdAlias;
+    }
+}
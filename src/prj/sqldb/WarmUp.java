@@ -0,0 +1,53 @@
+package prj.sqldb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class WarmUp
+{
+    /*
+     * Describes the work done right after SqlDb.openAsync has opened the
+     * database. Tables and indexes are counted on the db reader thread, which
+     * walks their pages into sqlite's page cache before the app needs them
+     * without copying any row to the heap.
+     * Statements are compiled once on the db writer and once on the db reader
+     * thread, which leaves them in android's statement cache of the
+     * connections those threads use. Later sql with exactly the same text
+     * then skips compilation - e.g. rawQuery sql, or the sql that android
+     * builds for query, insert, update and delete. Like preloading this is
+     * best effort, a statement that fails to compile is reported to the error
+     * sink and skipped.
+     */
+
+    private final List<String> _preloadQueries = new ArrayList<String>();
+    private final List<String> _statements = new ArrayList<String>();
+
+    public WarmUp table(String table)
+    {
+        _preloadQueries.add("SELECT count(*) FROM " + table + " NOT INDEXED");
+        return this;
+    }
+
+    public WarmUp index(String table, String index)
+    {
+        _preloadQueries.add("SELECT count(*) FROM " + table + " INDEXED BY " + index);
+        return this;
+    }
+
+    public WarmUp statement(String sql)
+    {
+        _statements.add(sql);
+        return this;
+    }
+
+    List<String> getPreloadQueries()
+    {
+        return Collections.unmodifiableList(_preloadQueries);
+    }
+
+    List<String> getStatements()
+    {
+        return Collections.unmodifiableList(_statements);
+    }
+}
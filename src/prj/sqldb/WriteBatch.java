@@ -0,0 +1,161 @@
+package prj.sqldb;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class WriteBatch
+{
+    /*
+     * Collects inserts, updates and deletes across any number of tables so
+     * that SqlDb.execute can run them in one go on the db writer thread.
+     * The batch runs in a single transaction unless a chunk size is set, and
+     * operations with the same sql reuse one compiled statement.
+     * The values are copied when an operation is added, so ContentValues may
+     * be reused by the caller afterwards.
+     */
+
+    private static final String[] CONFLICT_VALUES = new String[]
+            {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
+
+    private final List<Op> _ops = new ArrayList<Op>();
+    private int _chunkSize;
+
+    public WriteBatch insert(String table, String nullColumnHack, ContentValues values)
+    {
+        return insertWithOnConflict(table, nullColumnHack, values, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    public WriteBatch replace(String table, String nullColumnHack, ContentValues values)
+    {
+        return insertWithOnConflict(table, nullColumnHack, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public WriteBatch insertWithOnConflict(String table, String nullColumnHack,
+                                           ContentValues values, int conflictAlgorithm)
+    {
+        StringBuilder sql = new StringBuilder("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]).append(" INTO ").append(table).append('(');
+        Object[] args = null;
+        int size = values == null ? 0 : values.size();
+        if (size > 0)
+        {
+            args = new Object[size];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : values.valueSet())
+            {
+                sql.append(i > 0 ? "," : "").append(entry.getKey());
+                args[i++] = entry.getValue();
+            }
+            sql.append(") VALUES (");
+            for (i = 0; i < size; i++)
+            {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+        }
+        else
+        {
+            sql.append(nullColumnHack).append(") VALUES (NULL");
+        }
+        sql.append(')');
+        _ops.add(new Op(sql.toString(), args, true));
+        return this;
+    }
+
+    public WriteBatch update(String table, ContentValues values,
+                             String whereClause, String[] whereArgs)
+    {
+        return updateWithOnConflict(table, values, whereClause, whereArgs, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    public WriteBatch updateWithOnConflict(String table, ContentValues values,
+                                           String whereClause, String[] whereArgs,
+                                           int conflictAlgorithm)
+    {
+        if (values == null || values.size() == 0)
+        {
+            throw new IllegalArgumentException("Empty values");
+        }
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]).append(table).append(" SET ");
+        int whereCount = whereArgs == null ? 0 : whereArgs.length;
+        Object[] args = new Object[values.size() + whereCount];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet())
+        {
+            sql.append(i > 0 ? "," : "").append(entry.getKey()).append("=?");
+            args[i++] = entry.getValue();
+        }
+        for (int w = 0; w < whereCount; w++)
+        {
+            args[i++] = whereArgs[w];
+        }
+        if (whereClause != null && whereClause.length() > 0)
+        {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        _ops.add(new Op(sql.toString(), args, false));
+        return this;
+    }
+
+    public WriteBatch delete(String table, String whereClause, String[] whereArgs)
+    {
+        String sql = "DELETE FROM " + table;
+        if (whereClause != null && whereClause.length() > 0)
+        {
+            sql += " WHERE " + whereClause;
+        }
+        Object[] args = whereArgs == null ? null : whereArgs.clone();
+        _ops.add(new Op(sql, args, false));
+        return this;
+    }
+
+    /**
+     * Commits every chunkSize operations instead of running the whole batch
+     * in one transaction, which keeps the journal small for very large
+     * batches. The batch is then no longer atomic - if it fails, the chunks
+     * before the failing one stay committed. 0, the default, means a single
+     * transaction.
+     */
+    public WriteBatch setChunkSize(int chunkSize)
+    {
+        if (chunkSize < 0)
+        {
+            throw new IllegalArgumentException("Negative chunk size " + chunkSize);
+        }
+        _chunkSize = chunkSize;
+        return this;
+    }
+
+    public int size()
+    {
+        return _ops.size();
+    }
+
+    int getChunkSize()
+    {
+        return _chunkSize == 0 ? _ops.size() : _chunkSize;
+    }
+
+    List<Op> getOps()
+    {
+        return _ops;
+    }
+
+    static class Op
+    {
+        final String sql;
+        final Object[] args;
+        final boolean insert; //Inserts return a row id, others the number of rows affected
+
+        Op(String sql, Object[] args, boolean insert)
+        {
+            this.sql = sql;
+            this.args = args;
+            this.insert = insert;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package prj.sqldb;
+
+public abstract class WriteBatchCallback
+{
+    abstract public void exec(long[] results); //One result per operation in the batch, in order - a row id for inserts and the number of rows affected otherwise.
+
+    public void onError(Exception e) {}
+}
@@ -0,0 +1,55 @@
+package prj.sqldb;
+
+import prj.sqldb.threading.Later;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteFuture<RESULT> extends Later<RESULT>
+{
+    /*
+     * The future of a write. Its token can be given to a read, via
+     * QueryParams.setNotBefore or the rawQuery overload that takes one, so
+     * that the read runs only after this write has completed - without the
+     * caller blocking on get().
+     */
+
+    private static final int PENDING = 0;
+    private static final int STARTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final CommitSequence _commits;
+    private final long _token;
+    private final AtomicInteger _state = new AtomicInteger(PENDING);
+
+    WriteFuture(CommitSequence commits, long token)
+    {
+        _commits = commits;
+        _token = token;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && _state.compareAndSet(PENDING, CANCELLED))
+        {
+            /*
+             * A write that never runs must not hold back the reads that wait
+             * for it. One that has started completes the token when it ends.
+             */
+            _commits.complete(_token);
+        }
+        return cancelled;
+    }
+
+    /* Called by the write as it starts, false if it was cancelled first and must not run */
+    boolean start()
+    {
+        return _state.compareAndSet(PENDING, STARTED) || _state.get() == STARTED;
+    }
+
+    public long getToken()
+    {
+        return _token;
+    }
+}
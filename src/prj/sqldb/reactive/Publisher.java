@@ -0,0 +1,11 @@
+package prj.sqldb.reactive;
+
+public interface Publisher<T>
+{
+    /*
+     * Mirrors java.util.concurrent.Flow.Publisher, which is not available on
+     * android, so that adapting to a reactive streams library is a one liner.
+     * Every call to subscribe starts a new, independent stream.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
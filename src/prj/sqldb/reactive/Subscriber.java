@@ -0,0 +1,17 @@
+package prj.sqldb.reactive;
+
+public interface Subscriber<T>
+{
+    /*
+     * Mirrors java.util.concurrent.Flow.Subscriber.
+     * All methods are called serially on threads provided by the
+     * ExecutorService that is given to SqlDb in its constructor.
+     */
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+}
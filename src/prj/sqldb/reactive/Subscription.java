@@ -0,0 +1,12 @@
+package prj.sqldb.reactive;
+
+public interface Subscription
+{
+    /*
+     * Mirrors java.util.concurrent.Flow.Subscription.
+     * Both methods may be called from any thread.
+     */
+    void request(long n);
+
+    void cancel();
+}
@@ -0,0 +1,12 @@
+package prj.sqldb.threading;
+
+public interface ErrorSink
+{
+    /*
+     * Receives failures of database operations so that they can be logged or
+     * sent to crash reporting. It may be called on any db thread and so its
+     * implementation should be quick and must not block.
+     * 'operation' is a short description of what failed, e.g. "insert fruits"
+     */
+    void onError(String operation, Throwable error);
+}
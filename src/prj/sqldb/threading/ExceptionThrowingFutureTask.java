@@ -1,12 +1,16 @@
 package prj.sqldb.threading;
 
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 
 public class ExceptionThrowingFutureTask extends FutureTask<Object>
 {
-    public ExceptionThrowingFutureTask(Runnable r)
+    private final ErrorSink _sink;
+
+    public ExceptionThrowingFutureTask(Runnable r, ErrorSink sink)
     {
         super(r, null);
+        _sink = sink;
     }
 
     @Override
@@ -19,18 +23,14 @@ public class ExceptionThrowingFutureTask extends FutureTask<Object>
                 get();
             }
         }
-        catch (final Exception e)
+        catch (ExecutionException e)
         {
             /* This is done to ensure that the exception is not eaten by the executor */
-            Thread thread = new Thread(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    throw new RuntimeException(e.getMessage(),e);
-                }
-            });
-            thread.start();
+            _sink.onError("Task", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            //Cannot happen as the task is already done
         }
     }
 }
@@ -1,5 +1,6 @@
 package prj.sqldb.threading;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -10,14 +11,19 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class Later<RESULT> implements Future<RESULT>
 {
-    /* An implementaion of Future<?> that can wrap another future */
+    /*
+     * An implementaion of Future<?> that is completed explicitly by set() or
+     * setException() and that can wrap the future of the task that will
+     * complete it, so that cancelling this future cancels the task.
+     */
 
     private final Lock _lock;
     private final Condition _condition;
     private RESULT _value;
-    private Future<?> _inner;
-    private boolean _cancelled;
-    private boolean _valueSet;
+    private Throwable _error;
+    private volatile Future<?> _inner;
+    private volatile boolean _cancelled;
+    private volatile boolean _done;
 
     public Later()
     {
@@ -28,42 +34,39 @@ public class Later<RESULT> implements Future<RESULT>
     @Override
     public boolean cancel(boolean mayInterruptIfRunning)
     {
-        if (_inner == null)
+        _lock.lock();
+        try
         {
+            if (_done)
+            {
+                return false;
+            }
             _cancelled = true;
-            return false;
+            _done = true;
+            _condition.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
         }
-        else
+        Future<?> inner = _inner;
+        if (inner != null)
         {
-            return _inner.cancel(mayInterruptIfRunning);
+            inner.cancel(mayInterruptIfRunning);
         }
+        return true;
     }
 
     @Override
     public boolean isCancelled()
     {
-        if (_inner == null)
-        {
-            return _cancelled;
-        }
-        else
-        {
-            return _inner.isCancelled();
-        }
+        return _cancelled;
     }
 
     @Override
     public boolean isDone()
     {
-        if (_inner == null)
-        {
-            return _value != null;
-
-        }
-        else
-        {
-            return _inner.isDone();
-        }
+        return _done;
     }
 
     @Override
@@ -72,19 +75,11 @@ public class Later<RESULT> implements Future<RESULT>
         _lock.lock();
         try
         {
-            if (!_valueSet)
+            while (!_done)
             {
-                if (_inner == null)
-                {
-                    _condition.await();
-                }
-                else
-                {
-                    _inner.get();
-                    get();
-                }
+                _condition.await();
             }
-            return _value;
+            return result();
         }
         finally
         {
@@ -98,25 +93,16 @@ public class Later<RESULT> implements Future<RESULT>
         _lock.lock();
         try
         {
-            if (_value == null)
+            long nanos = unit.toNanos(timeout);
+            while (!_done)
             {
-                if (_inner == null)
+                if (nanos <= 0)
                 {
-                    _condition.await(timeout, unit);
+                    throw new TimeoutException();
                 }
-                else
-                {
-                    _inner.get();
-                }
-            }
-            if (_value == null)
-            {
-                throw new TimeoutException();
-            }
-            else
-            {
-                return _value;
+                nanos = _condition.awaitNanos(nanos);
             }
+            return result();
         }
         finally
         {
@@ -126,31 +112,54 @@ public class Later<RESULT> implements Future<RESULT>
 
     public boolean set(RESULT value)
     {
-        /* Should never be called on same thread as get() */
-        if (_valueSet)
+        return complete(value, null);
+    }
+
+    public boolean setException(Throwable error)
+    {
+        return complete(null, error);
+    }
+
+    public void wrap(Future<?> f)
+    {
+        _inner = f;
+        if (_cancelled)
         {
-            return false;
+            f.cancel(false);
         }
-        else
-        {
+    }
 
-            _lock.lock();
-            try
-            {
-                _valueSet = true;
-                _value = value;
-                _condition.signalAll();
-                return true;
-            }
-            finally
+    private boolean complete(RESULT value, Throwable error)
+    {
+        _lock.lock();
+        try
+        {
+            if (_done)
             {
-                _lock.unlock();
+                return false;
             }
+            _value = value;
+            _error = error;
+            _done = true;
+            _condition.signalAll();
+            return true;
+        }
+        finally
+        {
+            _lock.unlock();
         }
     }
 
-    public void wrap(Future<?> f)
+    private RESULT result() throws ExecutionException
     {
-        _inner = f;
+        if (_cancelled)
+        {
+            throw new CancellationException();
+        }
+        if (_error != null)
+        {
+            throw new ExecutionException(_error);
+        }
+        return _value;
     }
 }
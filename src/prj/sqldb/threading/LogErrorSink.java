@@ -0,0 +1,16 @@
+package prj.sqldb.threading;
+
+import android.util.Log;
+
+public class LogErrorSink implements ErrorSink
+{
+    /* Writes failures to the android log */
+
+    private static final String TAG = "SqlDb";
+
+    @Override
+    public void onError(String operation, Throwable error)
+    {
+        Log.e(TAG, operation + " failed", error);
+    }
+}
@@ -0,0 +1,53 @@
+package prj.sqldb.threading;
+
+public class RateLimitedErrorSink implements ErrorSink
+{
+    /*
+     * Passes at most maxErrors failures per window on to another sink and
+     * drops the rest, so that an error storm such as a full disk does not
+     * flood the log. The number of dropped failures is reported along with
+     * the first failure of the next window that lets one through.
+     */
+
+    private final ErrorSink _sink;
+    private final int _maxErrors;
+    private final long _windowMillis;
+    private long _windowStart;
+    private int _reported;
+    private int _dropped;
+
+    public RateLimitedErrorSink(ErrorSink sink, int maxErrors, long windowMillis)
+    {
+        _sink = sink;
+        _maxErrors = maxErrors;
+        _windowMillis = windowMillis;
+    }
+
+    @Override
+    public void onError(String operation, Throwable error)
+    {
+        int dropped;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            if (now - _windowStart >= _windowMillis)
+            {
+                _windowStart = now;
+                _reported = 0;
+            }
+            if (_reported >= _maxErrors)
+            {
+                _dropped++;
+                return;
+            }
+            _reported++;
+            dropped = _dropped;
+            _dropped = 0;
+        }
+        if (dropped > 0)
+        {
+            operation = operation + " (" + dropped + " earlier failures dropped)";
+        }
+        _sink.onError(operation, error);
+    }
+}
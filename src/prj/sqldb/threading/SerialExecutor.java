@@ -0,0 +1,61 @@
+package prj.sqldb.threading;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SerialExecutor implements Executor
+{
+    /*
+     * Runs tasks one at a time, in submission order, on threads of the
+     * wrapped executor - even when it has many threads.
+     */
+
+    private final Executor _executor;
+    private final Queue<Runnable> _tasks;
+    private final AtomicInteger _pending;
+    private final Runnable _drain;
+
+    public SerialExecutor(Executor executor)
+    {
+        _executor = executor;
+        _tasks = new ConcurrentLinkedQueue<Runnable>();
+        _pending = new AtomicInteger();
+        _drain = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                do
+                {
+                    Runnable task = _tasks.poll();
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        /* Let the remaining tasks run on another thread */
+                        if (_pending.decrementAndGet() != 0)
+                        {
+                            _executor.execute(this);
+                        }
+                        throw e;
+                    }
+                }
+                while (_pending.decrementAndGet() != 0);
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        _tasks.offer(task);
+        if (_pending.getAndIncrement() == 0)
+        {
+            _executor.execute(_drain);
+        }
+    }
+}
@@ -1,24 +1,96 @@
 package prj.sqldb.threading;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class SqlDBThreads
 {
-    private static ScheduledExecutorService _dbWriter = Executors.newSingleThreadScheduledExecutor();
-    private static ScheduledExecutorService _dbReader = Executors.newSingleThreadScheduledExecutor();
+    /*
+     * A writer and a reader thread for one database file. SqlDb uses the
+     * shared default instance unless it is given its own, which is needed
+     * when several database files should be written to in parallel.
+     */
+
+    /* The most failures passed on to an error sink in a minute */
+    public static final int MAX_REPORTED_ERRORS = 10;
+    private static final long ERROR_WINDOW_MILLIS = 60000;
+
+    private static final SqlDBThreads DEFAULT = new SqlDBThreads();
+    private static volatile ErrorSink _errorSink = rateLimited(new LogErrorSink());
+
+    private final ScheduledThreadPoolExecutor _dbWriter;
+    private final ScheduledThreadPoolExecutor _dbReader;
+
+    public SqlDBThreads()
+    {
+        _dbWriter = new ScheduledThreadPoolExecutor(1);
+        _dbReader = new ScheduledThreadPoolExecutor(1);
+    }
+
+    public static SqlDBThreads getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /*
+     * Sets the sink that receives exceptions thrown by scheduled tasks, and
+     * the failures of every SqlDb that has no sink of its own. It gets at
+     * most MAX_REPORTED_ERRORS of them a minute.
+     */
+    public static void setErrorSink(ErrorSink sink)
+    {
+        _errorSink = rateLimited(sink);
+    }
+
+    public static ErrorSink getErrorSink()
+    {
+        return _errorSink;
+    }
+
+    public static ErrorSink rateLimited(ErrorSink sink)
+    {
+        return new RateLimitedErrorSink(sink, MAX_REPORTED_ERRORS, ERROR_WINDOW_MILLIS);
+    }
 
     public static ScheduledFuture<?> scheduleOnWriterDBExecutor(Runnable runnable)
     {
-        ExceptionThrowingFutureTask task = new ExceptionThrowingFutureTask(runnable);
-        return _dbWriter.schedule(task, 0, TimeUnit.MILLISECONDS);
+        return DEFAULT.scheduleOnWriter(runnable, 0);
     }
 
     public static ScheduledFuture<?> scheduleOnReaderDBExecutor(Runnable runnable)
     {
-        ExceptionThrowingFutureTask task = new ExceptionThrowingFutureTask(runnable);
-        return _dbReader.schedule(task, 0, TimeUnit.MILLISECONDS);
+        return DEFAULT.scheduleOnReader(runnable, 0);
+    }
+
+    public ScheduledFuture<?> scheduleOnWriter(Runnable runnable, long delayMillis)
+    {
+        ExceptionThrowingFutureTask task = new ExceptionThrowingFutureTask(runnable, _errorSink);
+        return _dbWriter.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public ScheduledFuture<?> scheduleOnReader(Runnable runnable, long delayMillis)
+    {
+        ExceptionThrowingFutureTask task = new ExceptionThrowingFutureTask(runnable, _errorSink);
+        return _dbReader.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* The number of tasks waiting for the writer thread, including delayed retries */
+    public int getWriterQueueDepth()
+    {
+        return _dbWriter.getQueue().size();
+    }
+
+    /* The number of tasks waiting for the reader thread, including delayed retries */
+    public int getReaderQueueDepth()
+    {
+        return _dbReader.getQueue().size();
+    }
+
+    /* Lets queued tasks finish and then stops both threads, never call this on the default instance */
+    public void shutdown()
+    {
+        _dbWriter.shutdown();
+        _dbReader.shutdown();
     }
 }
@@ -0,0 +1,146 @@
+package prj.sqldb;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class CommitSequenceTest extends TestCase
+{
+    private CommitSequence _commits;
+    private List<String> _ran;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        _commits = new CommitSequence();
+        _ran = new ArrayList<String>();
+    }
+
+    public void testTokensIncrease()
+    {
+        assertEquals(1, _commits.issue());
+        assertEquals(2, _commits.issue());
+        assertEquals(3, _commits.issue());
+    }
+
+    public void testRunsOnceTokenIsCommitted()
+    {
+        long token = _commits.issue();
+        _commits.runAfter(token, record("a"));
+        assertTrue(_ran.isEmpty());
+
+        _commits.complete(token);
+        assertEquals(Arrays.asList("a"), _ran);
+    }
+
+    public void testWaitsForEarlierWrites()
+    {
+        long first = _commits.issue();
+        long second = _commits.issue();
+        long third = _commits.issue();
+        _commits.runAfter(second, record("second"));
+        _commits.runAfter(third, record("third"));
+
+        /* Completing out of order commits nothing until the gap is filled */
+        _commits.complete(second);
+        _commits.complete(third);
+        assertTrue(_ran.isEmpty());
+
+        _commits.complete(first);
+        assertEquals(Arrays.asList("second", "third"), _ran);
+    }
+
+    public void testReleasesOnlyUpToTheCommittedToken()
+    {
+        long first = _commits.issue();
+        long second = _commits.issue();
+        _commits.runAfter(first, record("first"));
+        _commits.runAfter(second, record("second"));
+
+        _commits.complete(first);
+        assertEquals(Arrays.asList("first"), _ran);
+
+        _commits.complete(second);
+        assertEquals(Arrays.asList("first", "second"), _ran);
+    }
+
+    public void testCommittedTokenRunsImmediately()
+    {
+        long token = _commits.issue();
+        _commits.complete(token);
+
+        _commits.runAfter(token, record("a"));
+        _commits.runAfter(0, record("b"));
+        assertEquals(Arrays.asList("a", "b"), _ran);
+    }
+
+    public void testCompletingTwiceIsIgnored()
+    {
+        long first = _commits.issue();
+        long second = _commits.issue();
+        _commits.complete(first);
+        _commits.complete(first);
+        _commits.runAfter(second, record("a"));
+        assertTrue(_ran.isEmpty());
+
+        _commits.complete(second);
+        assertEquals(Arrays.asList("a"), _ran);
+    }
+
+    public void testRejectsTokensNotIssued()
+    {
+        _commits.issue();
+        try
+        {
+            _commits.runAfter(2, record("a"));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+        assertTrue(_ran.isEmpty());
+    }
+
+    public void testCancellingAnUnstartedWriteReleasesItsReads()
+    {
+        WriteFuture<Void> write = new WriteFuture<Void>(_commits, _commits.issue());
+        _commits.runAfter(write.getToken(), record("a"));
+
+        assertTrue(write.cancel(false));
+        assertEquals(Arrays.asList("a"), _ran);
+        assertFalse(write.start());
+    }
+
+    public void testCancellingARunningWriteLeavesItsToken()
+    {
+        WriteFuture<Void> write = new WriteFuture<Void>(_commits, _commits.issue());
+        _commits.runAfter(write.getToken(), record("a"));
+        assertTrue(write.start());
+
+        /* The write cannot be stopped, so reads still wait for it to commit */
+        write.cancel(false);
+        assertTrue(_ran.isEmpty());
+
+        _commits.complete(write.getToken());
+        assertEquals(Arrays.asList("a"), _ran);
+    }
+
+    /* PRIVATES */
+
+    private Runnable record(final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _ran.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package prj.sqldb;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import prj.sqldb.reactive.Subscriber;
+import prj.sqldb.reactive.Subscription;
+
+@SmallTest
+public class CursorPublisherTest extends TestCase
+{
+    /*
+     * Drives a paged CursorPublisher over an in-memory table, running the
+     * reader and app executors inline.
+     */
+
+    private static final Executor INLINE = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private static final RowMapper<String> NAMES = new RowMapper<String>()
+    {
+        @Override
+        public String map(Cursor cursor)
+        {
+            assertEquals(1, cursor.getColumnCount()); //The rowid is hidden
+            assertEquals(-1, cursor.getColumnIndex("_page_rowid_"));
+            return cursor.getString(cursor.getColumnIndexOrThrow("name"));
+        }
+    };
+
+    private List<Object[]> _table;
+    private List<Long> _pagesAfter;
+    private Recorder _recorder;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        _table = new ArrayList<Object[]>();
+        _pagesAfter = new ArrayList<Long>();
+        _recorder = new Recorder();
+        for (long rowId = 1; rowId <= 5; rowId++)
+        {
+            _table.add(new Object[]{"row" + rowId, rowId});
+        }
+    }
+
+    public void testPagesPickUpAfterTheLastRowEmitted()
+    {
+        new CursorPublisher<String>(pages(), NAMES, INLINE, INLINE).subscribe(_recorder);
+
+        _recorder.subscription.request(2);
+        assertEquals(Arrays.asList("row1", "row2"), _recorder.items);
+
+        /* A row inserted behind the ones emitted is not picked up, nor is any row repeated */
+        _table.add(0, new Object[]{"row0", 0L});
+        _recorder.subscription.request(2);
+        assertEquals(Arrays.asList("row1", "row2", "row3", "row4"), _recorder.items);
+        assertEquals(Arrays.asList(Long.MIN_VALUE, 2L), _pagesAfter);
+        assertFalse(_recorder.complete);
+
+        _recorder.subscription.request(10);
+        assertEquals(Arrays.asList("row1", "row2", "row3", "row4", "row5"), _recorder.items);
+        assertTrue(_recorder.complete);
+    }
+
+    public void testNothingIsReadWithoutDemand()
+    {
+        new CursorPublisher<String>(pages(), NAMES, INLINE, INLINE).subscribe(_recorder);
+
+        assertTrue(_pagesAfter.isEmpty());
+        _recorder.subscription.cancel();
+        _recorder.subscription.request(1);
+        assertTrue(_pagesAfter.isEmpty());
+        assertTrue(_recorder.items.isEmpty());
+    }
+
+    /* PRIVATES */
+
+    private CursorPublisher.Pages pages()
+    {
+        return new CursorPublisher.Pages()
+        {
+            @Override
+            public Cursor open(long afterRowId, int limit)
+            {
+                _pagesAfter.add(afterRowId);
+                MatrixCursor page = new MatrixCursor(new String[]{"name", "_page_rowid_"});
+                for (Object[] row : _table)
+                {
+                    if ((Long) row[1] > afterRowId && page.getCount() < limit)
+                    {
+                        page.addRow(row);
+                    }
+                }
+                return page;
+            }
+        };
+    }
+
+    private static class Recorder implements Subscriber<String>
+    {
+        final List<String> items = new ArrayList<String>();
+        Subscription subscription;
+        boolean complete;
+
+        @Override
+        public void onSubscribe(Subscription s)
+        {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(String item)
+        {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable)
+        {
+            fail(throwable.toString());
+        }
+
+        @Override
+        public void onComplete()
+        {
+            complete = true;
+        }
+    }
+}
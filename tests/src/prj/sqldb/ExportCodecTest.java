@@ -0,0 +1,170 @@
+package prj.sqldb;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+@SmallTest
+public class ExportCodecTest extends TestCase
+{
+    /*
+     * Round trips rows through ExportWriter and ImportReader without a
+     * database. The buffers are kept small so that values span refills.
+     */
+
+    private static final String[] COLUMNS = new String[]{"id", "price", "name", "note", "data"};
+    private static final byte[] BLOB = new byte[]{0, 1, (byte) 0xab, (byte) 0xff, 'x'};
+
+    public void testBinaryRoundTripKeepsTypes() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.BINARY, export(ExportFormat.BINARY));
+
+        assertEquals(Arrays.asList(COLUMNS), Arrays.asList(reader.readHeader()));
+        assertRow(reader.readRow(), 1L, 2.5, "plain", "", BLOB);
+        assertRow(reader.readRow(), -7L, null, "comma, \"quote\"\r\nnewline", null, new byte[0]);
+        assertNull(reader.readRow());
+    }
+
+    public void testCsvRoundTripKeepsNullEmptyAndBlobs() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.CSV, export(ExportFormat.CSV));
+
+        assertEquals(Arrays.asList(COLUMNS), Arrays.asList(reader.readHeader()));
+        /* Numbers come back as text, the column affinity converts them on insert */
+        assertRow(reader.readRow(), "1", "2.5", "plain", "", BLOB);
+        assertRow(reader.readRow(), "-7", null, "comma, \"quote\"\r\nnewline", null, new byte[0]);
+        assertNull(reader.readRow());
+    }
+
+    public void testCsvQuotesTextOnly() throws IOException
+    {
+        String csv = new String(export(ExportFormat.CSV), "UTF-8");
+
+        assertEquals("\"id\",\"price\",\"name\",\"note\",\"data\"\r\n"
+                + "1,2.5,\"plain\",\"\",X'0001ABFF78'\r\n"
+                + "-7,,\"comma, \"\"quote\"\"\r\nnewline\",,X''\r\n", csv);
+    }
+
+    public void testCsvReadsLineEndingsAndBareFields() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.CSV, "a,b\n1,x\r2,\"y\"".getBytes("UTF-8"));
+
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(reader.readHeader()));
+        assertRow(reader.readRow(), "1", "x");
+        assertRow(reader.readRow(), "2", "y");
+        assertNull(reader.readRow());
+    }
+
+    public void testBinaryEofMidRowFails() throws IOException
+    {
+        byte[] bytes = export(ExportFormat.BINARY);
+        ImportReader reader = reader(ExportFormat.BINARY, Arrays.copyOf(bytes, bytes.length - 4));
+
+        reader.readHeader();
+        reader.readRow();
+        try
+        {
+            reader.readRow();
+            fail("Expected EOFException");
+        }
+        catch (EOFException expected)
+        {
+        }
+    }
+
+    public void testCsvUnterminatedQuoteFails() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.CSV, "a\n\"open".getBytes("UTF-8"));
+
+        reader.readHeader();
+        try
+        {
+            reader.readRow();
+            fail("Expected EOFException");
+        }
+        catch (EOFException expected)
+        {
+        }
+    }
+
+    public void testCsvRowWithWrongFieldCountFails() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.CSV, "a,b\n1\n".getBytes("UTF-8"));
+
+        reader.readHeader();
+        try
+        {
+            reader.readRow();
+            fail("Expected IOException");
+        }
+        catch (IOException expected)
+        {
+        }
+    }
+
+    public void testBinaryRejectsOtherData() throws IOException
+    {
+        ImportReader reader = reader(ExportFormat.BINARY, "id,name\n".getBytes("UTF-8"));
+        try
+        {
+            reader.readHeader();
+            fail("Expected IOException");
+        }
+        catch (IOException expected)
+        {
+        }
+    }
+
+    /* PRIVATES */
+
+    private static byte[] export(ExportFormat format) throws IOException
+    {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[]{1L, 2.5, "plain", "", BLOB});
+        cursor.addRow(new Object[]{-7L, null, "comma, \"quote\"\r\nnewline", null, new byte[0]});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportWriter writer = ExportWriter.create(format, Channels.newChannel(out), ByteBuffer.allocate(16));
+        writer.writeHeader(cursor.getColumnNames());
+        while (cursor.moveToNext())
+        {
+            writer.writeRow(cursor, 0);
+        }
+        writer.writeEnd();
+        cursor.close();
+        return out.toByteArray();
+    }
+
+    private static ImportReader reader(ExportFormat format, byte[] bytes)
+    {
+        return ImportReader.create(format, Channels.newChannel(new ByteArrayInputStream(bytes)),
+                ByteBuffer.allocate(16));
+    }
+
+    private static void assertRow(Object[] row, Object... expected)
+    {
+        assertNotNull(row);
+        assertEquals(expected.length, row.length);
+        for (int i = 0; i < row.length; i++)
+        {
+            if (expected[i] instanceof byte[])
+            {
+                assertTrue("Column " + i, row[i] instanceof byte[]);
+                assertTrue("Column " + i, Arrays.equals((byte[]) expected[i], (byte[]) row[i]));
+            }
+            else
+            {
+                assertEquals("Column " + i, expected[i], row[i]);
+            }
+        }
+    }
+}
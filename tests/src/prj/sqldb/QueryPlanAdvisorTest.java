@@ -0,0 +1,90 @@
+package prj.sqldb;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class QueryPlanAdvisorTest extends TestCase
+{
+    public void testEqualityColumnsComeBeforeTheRange()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_a_b_c ON t (a, b, c)",
+                QueryPlanAdvisor.suggestIndex("t", "c > ? AND a = ? AND b IN (?, ?)", null));
+    }
+
+    public void testOnlyTheFirstRangeIsUsed()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_a_b ON t (a, b)",
+                QueryPlanAdvisor.suggestIndex("t", "a = ? AND b >= ? AND c < ?", null));
+    }
+
+    public void testOrderingFollowsEqualities()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_status_created_name ON t (status, created, name)",
+                QueryPlanAdvisor.suggestIndex("t", "status = ?", "created DESC, name"));
+    }
+
+    public void testOrderingIsDroppedAfterARange()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_status_size ON t (status, size)",
+                QueryPlanAdvisor.suggestIndex("t", "status = ? AND size > ?", "created"));
+    }
+
+    public void testOrderingStopsAtAnExpression()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_a ON t (a)",
+                QueryPlanAdvisor.suggestIndex("t", null, "a, lower(b), c"));
+    }
+
+    public void testSkipsIsNotAndConstants()
+    {
+        assertNull(QueryPlanAdvisor.suggestIndex("t", "deleted IS NOT NULL AND 1 = 1", null));
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_a ON t (a)",
+                QueryPlanAdvisor.suggestIndex("t", "a IS ? AND b != ? AND c <> ?", null));
+    }
+
+    public void testTopLevelOrSuggestsNothing()
+    {
+        assertNull(QueryPlanAdvisor.suggestIndex("t", "a = ? OR b = ?", null));
+        assertNull(QueryPlanAdvisor.suggestIndex("t", "a = ? or b = ?", "c"));
+    }
+
+    public void testParenthesisedOrIsLeftOut()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_a ON t (a)",
+                QueryPlanAdvisor.suggestIndex("t", "a = ? AND (b = ? OR c = ?)", null));
+    }
+
+    public void testQuotedLiteralsAreNotColumns()
+    {
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_t_name ON t (name)",
+                QueryPlanAdvisor.suggestIndex("t", "name = 'x = 1 OR y = 2'", null));
+    }
+
+    public void testNothingToIndex()
+    {
+        assertNull(QueryPlanAdvisor.suggestIndex("t", null, null));
+        assertNull(QueryPlanAdvisor.suggestIndex("t", "a != ?", null));
+    }
+
+    public void testScansThatVisitEveryRow()
+    {
+        assertTrue(QueryPlanAdvisor.isFullScan("SCAN TABLE t", false));
+        assertTrue(QueryPlanAdvisor.isFullScan("SCAN t", true));
+        assertTrue(QueryPlanAdvisor.isFullScan("SCAN TABLE t USING INDEX idx_t_created", true));
+        assertTrue(QueryPlanAdvisor.isFullScan("SCAN TABLE t USING COVERING INDEX idx_t_created", true));
+        assertTrue(QueryPlanAdvisor.isFullScan("SCAN TABLE t USING INTEGER PRIMARY KEY", true));
+    }
+
+    public void testStepsThatDoNotVisitEveryRow()
+    {
+        /* Without a filter an index scan reads every row anyway, only for its order */
+        assertFalse(QueryPlanAdvisor.isFullScan("SCAN TABLE t USING INDEX idx_t_created", false));
+        assertFalse(QueryPlanAdvisor.isFullScan("SEARCH TABLE t USING INDEX idx_t_a (a=?)", true));
+        assertFalse(QueryPlanAdvisor.isFullScan("SEARCH TABLE t USING INTEGER PRIMARY KEY (rowid=?)", true));
+        assertFalse(QueryPlanAdvisor.isFullScan("SCAN SUBQUERY 1", true));
+        assertFalse(QueryPlanAdvisor.isFullScan("SCAN CONSTANT ROW", true));
+        assertFalse(QueryPlanAdvisor.isFullScan("USE TEMP B-TREE FOR ORDER BY", true));
+    }
+}
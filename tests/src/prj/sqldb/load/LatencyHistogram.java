@@ -0,0 +1,90 @@
+package prj.sqldb.load;
+
+public class LatencyHistogram
+{
+    /*
+     * Records latencies in microseconds into log-linear buckets - exact below
+     * 64us and with 32 buckets per power of two above, so percentiles are
+     * within about 3% - using a fixed amount of memory however long the run.
+     */
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + 58 * SUB_BUCKETS;
+
+    private final long[] _counts = new long[BUCKETS];
+    private long _count;
+    private long _sum;
+    private long _max;
+
+    public synchronized void record(long micros)
+    {
+        if (micros < 0)
+        {
+            micros = 0;
+        }
+        _counts[index(micros)]++;
+        _count++;
+        _sum += micros;
+        if (micros > _max)
+        {
+            _max = micros;
+        }
+    }
+
+    public synchronized long getCount()
+    {
+        return _count;
+    }
+
+    public synchronized long getMax()
+    {
+        return _max;
+    }
+
+    public synchronized double getMean()
+    {
+        return _count == 0 ? 0 : (double) _sum / _count;
+    }
+
+    /* The latency that the given fraction of samples are at or below, e.g. 0.99 for p99 */
+    public synchronized long getPercentile(double fraction)
+    {
+        if (_count == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * _count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += _counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(highestValue(i), _max);
+            }
+        }
+        return _max;
+    }
+
+    private static int index(long micros)
+    {
+        if (micros < 2 * SUB_BUCKETS)
+        {
+            return (int) micros;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(micros); //At least 6
+        int shift = msb - 5; //Keeps the top 6 bits, i.e. 32 to 63
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int index)
+    {
+        if (index < 2 * SUB_BUCKETS)
+        {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
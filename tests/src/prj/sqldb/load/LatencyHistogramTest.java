@@ -0,0 +1,90 @@
+package prj.sqldb.load;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class LatencyHistogramTest extends TestCase
+{
+    public void testEmptyHistogramReportsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++)
+        {
+            histogram.record(i);
+        }
+
+        assertEquals(25, histogram.getPercentile(0.5));
+        assertEquals(45, histogram.getPercentile(0.9));
+        assertEquals(50, histogram.getPercentile(1.0));
+        assertEquals(1, histogram.getPercentile(0.01));
+    }
+
+    public void testLargeValuesAreWithinBucketPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i * 100L);
+        }
+
+        assertWithin(500000, histogram.getPercentile(0.5));
+        assertWithin(990000, histogram.getPercentile(0.99));
+        assertWithin(999900, histogram.getPercentile(0.9999));
+        /* Never above the largest value recorded */
+        assertEquals(1000000, histogram.getPercentile(1.0));
+    }
+
+    public void testPercentileIsNotBelowTheValue()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(70000);
+        histogram.record(80000);
+
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue("p50 " + p50, p50 >= 70000 && p50 < 80000);
+    }
+
+    public void testCountMeanAndMax()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(30);
+        histogram.record(5000000);
+        histogram.record(-5); //Counted as zero
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(5000000, histogram.getMax());
+        assertEquals((10 + 30 + 5000000) / 4.0, histogram.getMean(), 0.001);
+        assertEquals(0, histogram.getPercentile(0.25));
+    }
+
+    public void testHugeValuesStillFit()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(0.5));
+    }
+
+    /* PRIVATES */
+
+    private static void assertWithin(long expected, long actual)
+    {
+        /* 32 buckets per power of two, and percentiles report the top of a bucket */
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 32);
+    }
+}
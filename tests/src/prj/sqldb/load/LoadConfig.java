@@ -0,0 +1,141 @@
+package prj.sqldb.load;
+
+public class LoadConfig
+{
+    /*
+     * Describes a run of the LoadHarness. The mix weights decide how often
+     * each kind of operation is picked by a caller, e.g. a mix of 8, 1, 1, 0
+     * is 90% reads. Every setter returns this so that a config reads as one
+     * expression.
+     */
+
+    private String _label = "";
+    private int _callers = 4;
+    private long _durationMillis = 10000;
+    private int _preloadRows = 10000;
+    private int _rowSizeBytes = 256;
+    private int _batchQuerySize = 10;
+    private int _transactionSize = 50;
+    private int _queryWeight = 8;
+    private int _batchQueryWeight = 1;
+    private int _insertWeight = 1;
+    private int _transactionWeight = 0;
+
+    /* Identifies the run in its report, e.g. the library version or commit */
+    public LoadConfig setLabel(String label)
+    {
+        _label = label;
+        return this;
+    }
+
+    /* The number of threads that issue operations concurrently, each waits for its operation to complete before the next */
+    public LoadConfig setCallers(int callers)
+    {
+        _callers = callers;
+        return this;
+    }
+
+    public LoadConfig setDurationMillis(long durationMillis)
+    {
+        _durationMillis = durationMillis;
+        return this;
+    }
+
+    /* Rows written before the measured run starts so that reads have data */
+    public LoadConfig setPreloadRows(int preloadRows)
+    {
+        _preloadRows = preloadRows;
+        return this;
+    }
+
+    /* Size of the payload of every written row */
+    public LoadConfig setRowSizeBytes(int rowSizeBytes)
+    {
+        _rowSizeBytes = rowSizeBytes;
+        return this;
+    }
+
+    /* The number of queries in every batchQuery */
+    public LoadConfig setBatchQuerySize(int batchQuerySize)
+    {
+        _batchQuerySize = batchQuerySize;
+        return this;
+    }
+
+    /* The number of inserts in every transaction */
+    public LoadConfig setTransactionSize(int transactionSize)
+    {
+        _transactionSize = transactionSize;
+        return this;
+    }
+
+    /* Relative weights of point queries, batch queries, single inserts and transactions */
+    public LoadConfig setMix(int query, int batchQuery, int insert, int transaction)
+    {
+        if (query < 0 || batchQuery < 0 || insert < 0 || transaction < 0
+                || query + batchQuery + insert + transaction == 0)
+        {
+            throw new IllegalArgumentException("Invalid mix");
+        }
+        _queryWeight = query;
+        _batchQueryWeight = batchQuery;
+        _insertWeight = insert;
+        _transactionWeight = transaction;
+        return this;
+    }
+
+    public String getLabel()
+    {
+        return _label;
+    }
+
+    public int getCallers()
+    {
+        return _callers;
+    }
+
+    public long getDurationMillis()
+    {
+        return _durationMillis;
+    }
+
+    public int getPreloadRows()
+    {
+        return _preloadRows;
+    }
+
+    public int getRowSizeBytes()
+    {
+        return _rowSizeBytes;
+    }
+
+    public int getBatchQuerySize()
+    {
+        return _batchQuerySize;
+    }
+
+    public int getTransactionSize()
+    {
+        return _transactionSize;
+    }
+
+    public int getQueryWeight()
+    {
+        return _queryWeight;
+    }
+
+    public int getBatchQueryWeight()
+    {
+        return _batchQueryWeight;
+    }
+
+    public int getInsertWeight()
+    {
+        return _insertWeight;
+    }
+
+    public int getTransactionWeight()
+    {
+        return _transactionWeight;
+    }
+}
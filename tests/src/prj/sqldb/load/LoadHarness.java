@@ -0,0 +1,346 @@
+package prj.sqldb.load;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Debug;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prj.sqldb.CursorHandler;
+import prj.sqldb.MultipleCursorHandler;
+import prj.sqldb.QueryParams;
+import prj.sqldb.QueryResult;
+import prj.sqldb.SqlDb;
+import prj.sqldb.WriteBatch;
+import prj.sqldb.threading.SqlDBThreads;
+
+/**
+ * Runs a configurable mix of queries, batch queries, inserts and transactions
+ * against a file backed database from several concurrent callers and reports
+ * throughput, latency percentiles per operation type, db queue depths and
+ * allocations. Meant to be run from an instrumentation test or a debug
+ * activity on a device, e.g.
+ * <pre>
+ * LoadReport report = new LoadHarness(context, "load.db", new LoadConfig().setLabel("1.2")).run();
+ * Log.i("load", report.toJson());
+ * </pre>
+ * The harness owns its database file, its db threads and its app executor so
+ * that it is not disturbed by, and does not disturb, the rest of the app.
+ * The database file is deleted at the start of every run, so every run
+ * measures the same preloaded table and runs can be compared.
+ * It lives with the tests rather than in the library.
+ */
+public class LoadHarness
+{
+    private static final String TABLE = "load_rows";
+    private static final String[] COLUMNS = new String[]{"_id", "k", "payload"};
+    private static final int PRELOAD_CHUNK = 1000;
+    private static final long QUEUE_SAMPLE_MILLIS = 10;
+
+    private static final String QUERY = "query";
+    private static final String BATCH_QUERY = "batchQuery";
+    private static final String INSERT = "insert";
+    private static final String TRANSACTION = "transaction";
+
+    private final Context _context;
+    private final String _databaseName;
+    private final LoadConfig _config;
+    private final Map<String, LatencyHistogram> _latencies;
+    private final Map<String, AtomicLong> _errors;
+    private final AtomicLong _maxId;
+
+    public LoadHarness(Context context, String databaseName, LoadConfig config)
+    {
+        _context = context;
+        _databaseName = databaseName;
+        _config = config;
+        _latencies = new LinkedHashMap<String, LatencyHistogram>();
+        _errors = new LinkedHashMap<String, AtomicLong>();
+        for (String type : new String[]{QUERY, BATCH_QUERY, INSERT, TRANSACTION})
+        {
+            _latencies.put(type, new LatencyHistogram());
+            _errors.put(type, new AtomicLong());
+        }
+        _maxId = new AtomicLong();
+    }
+
+    /* Blocks the calling thread for the duration of the run, never call it on the main thread */
+    public LoadReport run() throws InterruptedException, ExecutionException
+    {
+        _context.deleteDatabase(_databaseName);
+        SQLiteOpenHelper helper = new Helper(_context, _databaseName);
+        final SqlDBThreads threads = new SqlDBThreads();
+        ExecutorService appExecutor = Executors.newFixedThreadPool(2);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        try
+        {
+            final SqlDb db = new SqlDb(helper, appExecutor, threads);
+            preload(db);
+
+            final LoadReport.QueueDepth writerQueue = new LoadReport.QueueDepth();
+            final LoadReport.QueueDepth readerQueue = new LoadReport.QueueDepth();
+            sampler.scheduleAtFixedRate(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writerQueue.sample(threads.getWriterQueueDepth());
+                    readerQueue.sample(threads.getReaderQueueDepth());
+                }
+            }, 0, QUEUE_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+            Debug.startAllocCounting();
+            long allocatedBefore = Debug.getGlobalAllocSize();
+            long allocationsBefore = Debug.getGlobalAllocCount();
+            long gcBefore = Debug.getGlobalGcInvocationCount();
+            long startedAt = System.currentTimeMillis();
+            long start = System.nanoTime();
+            final long deadline = start + TimeUnit.MILLISECONDS.toNanos(_config.getDurationMillis());
+
+            List<Thread> callers = new ArrayList<Thread>();
+            for (int i = 0; i < _config.getCallers(); i++)
+            {
+                final Random random = new Random(i);
+                Thread caller = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        byte[] payload = new byte[_config.getRowSizeBytes()];
+                        random.nextBytes(payload);
+                        while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted())
+                        {
+                            runOne(db, random, payload);
+                        }
+                    }
+                }, "sqldb-load-" + i);
+                callers.add(caller);
+                caller.start();
+            }
+            for (Thread caller : callers)
+            {
+                caller.join();
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long allocated = Debug.getGlobalAllocSize() - allocatedBefore;
+            long allocations = Debug.getGlobalAllocCount() - allocationsBefore;
+            long gcs = Debug.getGlobalGcInvocationCount() - gcBefore;
+            Debug.stopAllocCounting();
+
+            Map<String, Long> errors = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> e : _errors.entrySet())
+            {
+                errors.put(e.getKey(), e.getValue().get());
+            }
+            return new LoadReport(_config, startedAt, elapsedMillis, _latencies,
+                    errors, writerQueue, readerQueue, allocated, allocations, gcs);
+        }
+        finally
+        {
+            sampler.shutdownNow();
+            threads.shutdown();
+            appExecutor.shutdown();
+            helper.close();
+        }
+    }
+
+    /* PRIVATES */
+
+    private void preload(SqlDb db) throws InterruptedException, ExecutionException
+    {
+        Random random = new Random(-1);
+        byte[] payload = new byte[_config.getRowSizeBytes()];
+        random.nextBytes(payload);
+        for (int written = 0; written < _config.getPreloadRows(); written += PRELOAD_CHUNK)
+        {
+            WriteBatch batch = new WriteBatch();
+            for (int i = written; i < Math.min(written + PRELOAD_CHUNK, _config.getPreloadRows()); i++)
+            {
+                batch.insert(TABLE, null, row(random, payload));
+            }
+            db.execute(batch, null).get();
+        }
+        Long maxId = db.rawQuery("SELECT max(_id) FROM " + TABLE, null, MAX_ID).get();
+        _maxId.set(maxId == null ? 0 : maxId);
+    }
+
+    private void runOne(SqlDb db, Random random, byte[] payload)
+    {
+        String type = pick(random);
+        long start = System.nanoTime();
+        try
+        {
+            if (type.equals(QUERY))
+            {
+                db.query(TABLE, COLUMNS, "_id = ?", new String[]{randomId(random)}, COUNT).get();
+            }
+            else if (type.equals(BATCH_QUERY))
+            {
+                List<QueryParams> params = new ArrayList<QueryParams>(_config.getBatchQuerySize());
+                for (int i = 0; i < _config.getBatchQuerySize(); i++)
+                {
+                    params.add(new QueryParams(TABLE, COLUMNS, "_id = ?",
+                            new String[]{randomId(random)}, null, null, null));
+                }
+                db.batchQuery(BATCH_COUNT, params).get();
+            }
+            else if (type.equals(INSERT))
+            {
+                updateMaxId(db.insert(TABLE, null, row(random, payload), null).get());
+            }
+            else
+            {
+                WriteBatch batch = new WriteBatch();
+                for (int i = 0; i < _config.getTransactionSize(); i++)
+                {
+                    batch.insert(TABLE, null, row(random, payload));
+                }
+                long[] ids = db.execute(batch, null).get();
+                if (ids.length > 0)
+                {
+                    updateMaxId(ids[ids.length - 1]);
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            _errors.get(type).incrementAndGet();
+            return; //Failures are counted, not timed
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        _latencies.get(type).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private String pick(Random random)
+    {
+        int r = random.nextInt(_config.getQueryWeight() + _config.getBatchQueryWeight()
+                + _config.getInsertWeight() + _config.getTransactionWeight());
+        if ((r -= _config.getQueryWeight()) < 0)
+        {
+            return QUERY;
+        }
+        if ((r -= _config.getBatchQueryWeight()) < 0)
+        {
+            return BATCH_QUERY;
+        }
+        if (r - _config.getInsertWeight() < 0)
+        {
+            return INSERT;
+        }
+        return TRANSACTION;
+    }
+
+    private String randomId(Random random)
+    {
+        long max = Math.max(1, _maxId.get());
+        return String.valueOf(1 + (long) (random.nextDouble() * max));
+    }
+
+    private void updateMaxId(long id)
+    {
+        long current;
+        while (id > (current = _maxId.get()) && !_maxId.compareAndSet(current, id))
+        {
+        }
+    }
+
+    private static ContentValues row(Random random, byte[] payload)
+    {
+        ContentValues values = new ContentValues(2);
+        values.put("k", (long) random.nextInt());
+        values.put("payload", payload);
+        return values;
+    }
+
+    private static final CursorHandler<Integer> COUNT = new CursorHandler<Integer>()
+    {
+        @Override
+        public Integer handle(Cursor cursor)
+        {
+            int rows = 0;
+            while (cursor.moveToNext())
+            {
+                cursor.getBlob(2); //Read the payload like an app would
+                rows++;
+            }
+            return rows;
+        }
+
+        @Override
+        public void callback(Integer result)
+        {
+        }
+    };
+
+    private static final MultipleCursorHandler<Integer> BATCH_COUNT = new MultipleCursorHandler<Integer>()
+    {
+        @Override
+        public Integer convert(Iterator<QueryResult> iter)
+        {
+            int rows = 0;
+            while (iter.hasNext())
+            {
+                rows += COUNT.handle(iter.next().getCursor());
+            }
+            return rows;
+        }
+
+        @Override
+        public void callback(Integer aggregatedResults)
+        {
+        }
+    };
+
+    private static final CursorHandler<Long> MAX_ID = new CursorHandler<Long>()
+    {
+        @Override
+        public Long handle(Cursor cursor)
+        {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+        }
+
+        @Override
+        public void callback(Long result)
+        {
+        }
+    };
+
+    private static class Helper extends SQLiteOpenHelper
+    {
+        Helper(Context context, String name)
+        {
+            super(context, name, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db)
+        {
+            db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, k INTEGER, payload BLOB)");
+            db.execSQL("CREATE INDEX " + TABLE + "_k ON " + TABLE + " (k)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+        {
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package prj.sqldb.load;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+@LargeTest
+public class LoadHarnessTest extends AndroidTestCase
+{
+    /* Runs the default load and logs the report, compare it across versions */
+    public void testDefaultLoad() throws Exception
+    {
+        LoadReport report = new LoadHarness(getContext(), "load.db", new LoadConfig()).run();
+        Log.i("sqldb-load", report.toJson());
+        assertTrue(report.getOperations() > 0);
+    }
+}
@@ -0,0 +1,157 @@
+package prj.sqldb.load;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LoadReport
+{
+    /*
+     * The outcome of a LoadHarness run. toJson() gives a stable, machine
+     * readable form so that runs of different versions can be compared.
+     * Latencies are in microseconds and measured from the call into SqlDb
+     * to the completion of its future, so they include queueing.
+     */
+
+    private final LoadConfig _config;
+    private final long _startedAtMillis;
+    private final long _elapsedMillis;
+    private final Map<String, LatencyHistogram> _latencies;
+    private final Map<String, Long> _errors;
+    private final QueueDepth _writerQueue;
+    private final QueueDepth _readerQueue;
+    private final long _allocatedBytes;
+    private final long _allocations;
+    private final long _gcCount;
+
+    LoadReport(LoadConfig config, long startedAtMillis, long elapsedMillis,
+               Map<String, LatencyHistogram> latencies, Map<String, Long> errors,
+               QueueDepth writerQueue, QueueDepth readerQueue,
+               long allocatedBytes, long allocations, long gcCount)
+    {
+        _config = config;
+        _startedAtMillis = startedAtMillis;
+        _elapsedMillis = elapsedMillis;
+        _latencies = new LinkedHashMap<String, LatencyHistogram>(latencies);
+        _errors = new LinkedHashMap<String, Long>(errors);
+        _writerQueue = writerQueue;
+        _readerQueue = readerQueue;
+        _allocatedBytes = allocatedBytes;
+        _allocations = allocations;
+        _gcCount = gcCount;
+    }
+
+    public long getElapsedMillis()
+    {
+        return _elapsedMillis;
+    }
+
+    /* Latencies keyed by operation type: query, batchQuery, insert and transaction */
+    public Map<String, LatencyHistogram> getLatencies()
+    {
+        return _latencies;
+    }
+
+    public long getOperations()
+    {
+        long operations = 0;
+        for (LatencyHistogram h : _latencies.values())
+        {
+            operations += h.getCount();
+        }
+        return operations;
+    }
+
+    public double getThroughput()
+    {
+        return _elapsedMillis == 0 ? 0 : getOperations() * 1000.0 / _elapsedMillis;
+    }
+
+    public String toJson()
+    {
+        try
+        {
+            JSONObject config = new JSONObject()
+                    .put("callers", _config.getCallers())
+                    .put("durationMillis", _config.getDurationMillis())
+                    .put("preloadRows", _config.getPreloadRows())
+                    .put("rowSizeBytes", _config.getRowSizeBytes())
+                    .put("batchQuerySize", _config.getBatchQuerySize())
+                    .put("transactionSize", _config.getTransactionSize())
+                    .put("mix", new JSONObject()
+                            .put("query", _config.getQueryWeight())
+                            .put("batchQuery", _config.getBatchQueryWeight())
+                            .put("insert", _config.getInsertWeight())
+                            .put("transaction", _config.getTransactionWeight()));
+
+            JSONObject operations = new JSONObject();
+            for (Map.Entry<String, LatencyHistogram> e : _latencies.entrySet())
+            {
+                LatencyHistogram h = e.getValue();
+                Long errors = _errors.get(e.getKey());
+                operations.put(e.getKey(), new JSONObject()
+                        .put("count", h.getCount())
+                        .put("errors", errors == null ? 0 : errors.longValue())
+                        .put("throughput", _elapsedMillis == 0 ? 0 : h.getCount() * 1000.0 / _elapsedMillis)
+                        .put("meanMicros", h.getMean())
+                        .put("p50Micros", h.getPercentile(0.5))
+                        .put("p99Micros", h.getPercentile(0.99))
+                        .put("p999Micros", h.getPercentile(0.999))
+                        .put("maxMicros", h.getMax()));
+            }
+
+            return new JSONObject()
+                    .put("label", _config.getLabel())
+                    .put("startedAtMillis", _startedAtMillis)
+                    .put("elapsedMillis", _elapsedMillis)
+                    .put("config", config)
+                    .put("throughput", getThroughput())
+                    .put("operations", operations)
+                    .put("writerQueue", _writerQueue.toJson())
+                    .put("readerQueue", _readerQueue.toJson())
+                    .put("gc", new JSONObject()
+                            .put("allocatedBytes", _allocatedBytes)
+                            .put("allocations", _allocations)
+                            .put("collections", _gcCount))
+                    .toString(2);
+        }
+        catch (JSONException e)
+        {
+            throw new IllegalStateException(e); //Only thrown for NaN or infinite numbers
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return toJson();
+    }
+
+    static class QueueDepth
+    {
+        /* Samples of the number of tasks waiting for a db thread */
+
+        private long _samples;
+        private long _sum;
+        private int _max;
+
+        synchronized void sample(int depth)
+        {
+            _samples++;
+            _sum += depth;
+            if (depth > _max)
+            {
+                _max = depth;
+            }
+        }
+
+        synchronized JSONObject toJson() throws JSONException
+        {
+            return new JSONObject()
+                    .put("mean", _samples == 0 ? 0 : (double) _sum / _samples)
+                    .put("max", _max);
+        }
+    }
+}